@@ -0,0 +1,96 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+// Compares how a policy's graded tests were once found, by scanning every test case for
+// each one (JTestCase.matches), against GradingPlan.outcomes, which makes one pass over
+// them. This isn't part of the tests, since timings don't belong in a pass/fail suite;
+// run it by hand with `./gradlew :autograder:benchmark`.
+
+private const val NUM_SUITES = 100
+private const val CASES_PER_SUITE = 100
+private const val NUM_TOPICS = 5
+private const val TESTS_PER_TOPIC = 100
+private const val ROUNDS = 20
+
+/**
+ * 100 suites of 100 test cases each, where every tenth method is a TestFactory with ten
+ * dynamic tests, and every seventh test case fails.
+ */
+private val suites = (0 until NUM_SUITES).map { suiteNum ->
+    val className = "edu.rice.synthetic.Suite$suiteNum"
+    JUnitSuite(
+        (0 until CASES_PER_SUITE).map { caseNum ->
+            val method = "method${caseNum / 10 * 10}"
+            val methodName = if (caseNum % 10 == 0) "$method()" else "$method()[$caseNum]"
+            val failure = if (caseNum % 7 == 0) JFailure("synthetic") else null
+            JTestCase(methodName, className, 0.001, failure)
+        },
+        className
+    )
+}
+
+/** A policy that grades 500 of those methods, five from each suite. */
+private val project = GGradeProject(
+    "Synthetic", "Benchmark of test case lookups", 500.0,
+    0.0, false, false, false,
+    0.0, GCoverageStyle.LINES, 0.0, emptyList(),
+    (0 until NUM_TOPICS).map { topicNum ->
+        GGradeTopic(
+            "Topic$topicNum", TESTS_PER_TOPIC.toDouble(),
+            (0 until TESTS_PER_TOPIC).map {
+                val testNum = topicNum * TESTS_PER_TOPIC + it
+                GGradeTest(
+                    0.5, 1.0,
+                    "edu.rice.synthetic.Suite${testNum / NUM_TOPICS}",
+                    "method${testNum % NUM_TOPICS * 10}",
+                    true
+                )
+            }
+        )
+    }
+)
+
+/** The original implementation: every graded test scans every test case. */
+private fun GradingPlan.linearEval(): List<EvaluatorResult> {
+    val allCases = suites.flatMap { it.tests ?: emptyList() }
+    val counts = project.topics
+        .flatMap { it.tests }
+        .distinctBy { Pair(it.className, it.methodName) }
+        .map { test ->
+            val cases = allCases.filter { it.matches(test.className, test.methodName) }
+            TestCaseCounts(
+                test.className, test.methodName, cases.size, cases.count { it.failure != null }
+            )
+        }
+    return eval(outcomesFromCounts(counts))
+}
+
+/** Runs the block [ROUNDS] times, after as many to warm up, returning its fastest time. */
+private fun <T> fastestMillis(block: () -> T): Double {
+    repeat(ROUNDS) { block() }
+    return (0 until ROUNDS).map {
+        val start = System.nanoTime()
+        block()
+        (System.nanoTime() - start) / 1_000_000.0
+    }.min() ?: 0.0
+}
+
+fun main() {
+    val plan = GradingPlan(project)
+    check(plan.linearEval() == plan.eval(plan.outcomes(suites))) {
+        "the linear scan and GradingPlan disagree"
+    }
+
+    val linear = fastestMillis { plan.linearEval() }
+    val indexed = fastestMillis { plan.eval(plan.outcomes(suites)) }
+    println(
+        "%,d test cases, %d graded tests: linear scan %.2f ms, GradingPlan %.2f ms".format(
+            NUM_SUITES * CASES_PER_SUITE, NUM_TOPICS * TESTS_PER_TOPIC, linear, indexed
+        )
+    )
+}
@@ -56,4 +56,12 @@ public @interface Grade {
    * with the TestFactory. This field is ignored for regular unit tests.
    */
   double maxPoints() default 0.0;
+
+  /**
+   * If positive, the longest this test may run, in milliseconds, before the autograder gives up on
+   * it and counts it as failed, because it timed out. For a TestFactory, this applies to each of its
+   * dynamic tests. Timeouts are only enforced when the autograder runs the tests itself (the
+   * <b>--run-tests</b> option). The default, zero, means no timeout.
+   */
+  long timeoutMillis() default 0;
 }
@@ -6,111 +6,329 @@
 
 package edu.rice.autograder
 
+import arrow.core.Try
 import arrow.core.getOrDefault
 import arrow.syntax.collections.tail
 import java.io.ByteArrayOutputStream
 import java.io.PrintStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Supplier
+import java.util.stream.Collectors
 
 const val STYLE_CATEGORY = "Style"
 const val COVERAGE_CATEGORY = "Coverage"
 const val TESTS_CATEGORY = "Tests"
 
-fun GGradeProject.warningAggregator(): List<EvaluatorResult> =
+// Reading and parsing the artifacts in a build directory is where the grader spends
+// nearly all of its time, and every artifact can be handled independently of the
+// others, so we fan the work out. The results are always joined back together in a
+// fixed order, so the final report is the same no matter how the work was scheduled.
+//
+// The outer tasks (one per kind of artifact) spend most of their time waiting on other
+// tasks, so they get their own threads. If they ran on the common fork-join pool, they
+// could tie up every one of its threads waiting for work queued behind them. Only the
+// leaf work, which never waits on anything, goes to the common pool (see parallelMap).
+
+/** Runs [block] with the given context class loader, restoring the old one afterward. */
+internal fun <T> withContextClassLoader(loader: ClassLoader?, block: () -> T): T {
+    val thread = Thread.currentThread()
+    val oldLoader = thread.contextClassLoader
+    thread.contextClassLoader = loader
+    return try {
+        block()
+    } finally {
+        thread.contextClassLoader = oldLoader
+    }
+}
+
+/**
+ * Runs the outer, blocking tasks of [ingestAsync] and [Grader.gradeAsync]. Threads are
+ * created as needed, so a task waiting on another never keeps that one from starting,
+ * and they're daemons, so they never keep the JVM running.
+ */
+internal val ingestExecutor: ExecutorService by lazy {
+    val counter = AtomicInteger(0)
+    Executors.newCachedThreadPool { r ->
+        Thread(r, "ingest-${counter.incrementAndGet()}").apply { isDaemon = true }
+    }
+}
+
+/**
+ * Starts [block] running on the [ingestExecutor], with the caller's context class loader,
+ * which might be the only one that can see the test classes (see [GradingPlan.runTests]).
+ */
+internal fun <T> ingestAsync(block: () -> T): CompletableFuture<T> {
+    val loader = Thread.currentThread().contextClassLoader
+    return CompletableFuture.supplyAsync(
+        Supplier { withContextClassLoader(loader, block) },
+        ingestExecutor
+    )
+}
+
+/** Waits for the future, rethrowing whatever its computation threw. */
+internal fun <T> CompletableFuture<T>.await(): T =
+    try {
+        join()
+    } catch (e: CompletionException) {
+        throw e.cause ?: e
+    }
+
+/**
+ * Like [map], but the work is spread across the common fork-join pool. The
+ * results are in the same order as the input. The function [f] mustn't wait
+ * on other asynchronous work, such as [ingestAsync].
+ */
+internal fun <T, R> List<T>.parallelMap(f: (T) -> R): List<R> =
+    parallelStream().map { f(it) }.collect(Collectors.toList())
+
+/**
+ * The outcomes of each of the style tools (and the compiler), none of which depend on
+ * the grading policy. Whether each one counts, and for how much, is up to the policy;
+ * see [GGradeProject.warningResult].
+ */
+data class StyleOutcomes(
+    val googleJavaFormat: CodeStyleDeduction,
+    val checkStyleMain: CodeStyleDeduction,
+    val checkStyleTest: CodeStyleDeduction,
+    val compilerLog: CodeStyleDeduction
+)
+
+/**
+ * Reads the outcomes of every style tool from the build directory, concurrently. Any
+ * that are missing are reported as such, rather than failing.
+ */
+fun GradingContext.readStyleOutcomes(): StyleOutcomes {
+    // None of these deductions depend on the policy, so if we've seen
+    // the same artifact before, the cache has exactly what we need.
+    val cache = artifactCache
+
+    val googleJavaFormatFuture = ingestAsync {
+        findFileWildcardDir(googleJavaFormatDir, "fileStates.txt")
+            .flatMap { path ->
+                cache.getOrCompute("googleJavaFormat", path) {
+                    path.readFile().map { googleJavaFormatParser(it).eval() }
+                }
+            }
+            .getOrDefault { googleJavaFormatMissing }
+    }
+
+    val checkStyleMainFuture = ingestAsync {
+        val path = Paths.get(checkStyleReport("main"))
+        cache.getOrCompute("checkStyle-main", path) {
+            path.readFile().map { checkStyleParser(it).eval("main") }
+        }.getOrDefault { checkStyleMissing("main") }
+    }
+
+    val checkStyleTestFuture = ingestAsync {
+        val path = Paths.get(checkStyleReport("test"))
+        cache.getOrCompute("checkStyle-test", path) {
+            path.readFile().map { checkStyleParser(it).eval("test") }
+        }.getOrDefault { checkStyleMissing("test") }
+    }
+
+    val compilerLogFuture = ingestAsync {
+        val path = Paths.get(compilerLog)
+        cache.getOrCompute("compilerLog", path) {
+            path.readFile().map { javacZeroWarnings(it) }
+        }.getOrDefault { javacLogMissing }
+    }
+
+    return StyleOutcomes(
+        googleJavaFormatFuture.await(),
+        checkStyleMainFuture.await(),
+        checkStyleTestFuture.await(),
+        compilerLogFuture.await()
+    )
+}
+
+/** Applies this project's warning / style policy to the outcomes of the style tools. */
+fun GGradeProject.warningResult(style: StyleOutcomes): EvaluatorResult {
+    Log.i(
+        "warningAggregator",
+        "useCheckStyle($useCheckStyle), " +
+            "useGoogleJavaFormat($useGoogleJavaFormat), " +
+            "useJavacWarnings($useJavacWarnings)"
+    )
+
+    val checkStyleMaybe =
+        if (useCheckStyle) listOf(style.checkStyleMain, style.checkStyleTest)
+        else emptyList()
+
+    val googleJavaStyleMaybe =
+        if (useGoogleJavaFormat) listOf(style.googleJavaFormat) else emptyList()
+
+    val compilerMaybe =
+        if (useJavacWarnings) listOf(style.compilerLog) else emptyList()
+
+    val allResults = checkStyleMaybe + googleJavaStyleMaybe + compilerMaybe
+
+    val passing = allResults.fold(true) { a, b -> a && b.passing }
+
+    return EvaluatorResult(
+        passing,
+        if (passing) warningPoints else 0.0,
+        warningPoints,
+        if (passing) "No warning / style deductions" else "Warning / style deductions",
+        STYLE_CATEGORY,
+        allResults
+    )
+}
+
+fun GGradeProject.warningAggregator(context: GradingContext): List<EvaluatorResult> =
     listOf(
         if (warningPoints == 0.0) {
             passingEvaluatorResult(0.0, "No warning / style deductions", STYLE_CATEGORY)
         } else {
-            Log.i(
-                "warningAggregator",
-                "useCheckStyle($useCheckStyle), " +
-                    "useGoogleJavaFormat($useGoogleJavaFormat), " +
-                    "useJavacWarnings($useJavacWarnings)"
-            )
-
-            val googleJavaFormatContents =
-                readFileWildcardDir("${AutoGrader.buildDir}/google-java-format/", "fileStates.txt")
-                    .map { googleJavaFormatParser(it).eval() }
-                    .getOrDefault { googleJavaFormatMissing }
+            warningResult(context.readStyleOutcomes())
+        }
+    )
 
-            val checkStyleMainContents =
-                readFile("${AutoGrader.buildDir}/reports/checkstyle/main.xml")
-                    .map { checkStyleParser(it).eval("main") }
-                    .getOrDefault { checkStyleMissing("main") }
+/** Gradle writes the results for each test class to a file with this name. */
+fun testResultsFileName(className: String) = "TEST-$className.xml"
 
-            val checkStyleTestContents =
-                readFile("${AutoGrader.buildDir}/reports/checkstyle/test.xml")
-                    .map { checkStyleParser(it).eval("test") }
-                    .getOrDefault { checkStyleMissing("test") }
+/**
+ * Returns the paths of the test results files for every test class named by this
+ * project's policy that actually exist. Missing files are logged and skipped, and
+ * the tests they would have held are later reported as missing.
+ */
+fun GGradeProject.gradedTestResultsFiles(context: GradingContext): List<Path> =
+    GradingPlan(this).gradedTestResultsFiles(context)
 
-            val compilerLogContents =
-                readFile("${AutoGrader.buildDir}/logs/compile.log")
-                    .map { javacZeroWarnings(it) }
-                    .getOrDefault { javacLogMissing }
+/** Like [GGradeProject.gradedTestResultsFiles], using the plan's list of test classes. */
+fun GradingPlan.gradedTestResultsFiles(context: GradingContext): List<Path> =
+    context.testResultsFiles(gradedClassNames)
 
-            val checkStyleMaybe =
-                if (useCheckStyle) listOf(checkStyleMainContents, checkStyleTestContents)
-                else emptyList()
+/**
+ * Returns the paths of the test results files for the given test classes that actually
+ * exist, in any of the test results directories, logging and skipping the missing ones.
+ */
+fun GradingContext.testResultsFiles(classNames: List<String>): List<Path> =
+    classNames
+        .flatMap { className ->
+            testResultsDirs.map { Paths.get(it, testResultsFileName(className)) }
+        }
+        .filter {
+            val exists = Files.exists(it)
+            if (!exists) Log.i("unitTestAggregator", "Missing test results: $it")
+            exists
+        }
 
-            val googleJavaStyleMaybe =
-                if (useGoogleJavaFormat) listOf(googleJavaFormatContents) else emptyList()
+/** Returns the paths of every test results file in all of the test results directories. */
+fun allTestResultsFiles(context: GradingContext): List<Path> =
+    context.testResultsDirs.flatMap { dir ->
+        readdirPath(dir)
+            .onFailure {
+                Log.e("unitTestAggregator", "Failed to read test-results directory ($dir)!", it)
+            }.getOrDefault { emptyList() }
+            .filter { it.fileName.toString().endsWith(".xml") }
+    }
 
-            val compilerMaybe =
-                if (useJavacWarnings) listOf(compilerLogContents) else emptyList()
+fun GGradeProject.unitTestAggregator(
+    context: GradingContext,
+    plan: GradingPlan = GradingPlan(this)
+): List<EvaluatorResult> {
+    if (context.runTests) {
+        val workers = context.testWorkers
+        return plan.unitTestResults(
+            if (workers != null) plan.runTests(workers, context)
+            else plan.runTests(context.failFast)
+        )
+    }
 
-            val allResults = checkStyleMaybe + googleJavaStyleMaybe + compilerMaybe
+    // When we only want the graded tests, we go straight to their files, so large
+    // ungraded test suites cost us nothing. Either way, each file is streamed and
+    // parsed on the fork-join pool; files that can't be read or parsed are dropped,
+    // just as if they weren't there.
+    val resultsFiles =
+        if (context.gradedTestsOnly) plan.gradedTestResultsFiles(context)
+        else allTestResultsFiles(context)
 
-            val passing = allResults.fold(true) { a, b -> a && b.passing }
+    val parsedSuites = context.readTestSuites(resultsFiles)
 
-            EvaluatorResult(
-                passing,
-                if (passing) warningPoints else 0.0,
-                warningPoints,
-                if (passing) "No warning / style deductions" else "Warning / style deductions",
-                STYLE_CATEGORY,
-                allResults
-            )
-        }
-    )
+    Log.i("unitTestAggregator", "Found ${parsedSuites.size} files")
 
-fun GGradeProject.unitTestAggregator(): List<EvaluatorResult> {
-    val testResultFiles = readdirPath("${AutoGrader.buildDir}/test-results/test")
-        .onFailure {
-            Log.e("unitTestAggregator", "Failed to read test-results directory!", it)
-        }.getOrDefault { emptyList() }
-        .filter { it.fileName.toString().endsWith(".xml") }
-        .flatMap { it.readFile().asList() }
+    return plan.unitTestResults(if (parsedSuites.isEmpty()) null else plan.outcomes(parsedSuites))
+}
 
-    Log.i("unitTestAggregator", "Found ${testResultFiles.size} files")
+/**
+ * Reads and parses the given test results files on the fork-join pool, dropping any that
+ * can't be read or parsed.
+ */
+fun GradingContext.readTestSuites(resultsFiles: List<Path>): List<JUnitSuite> =
+    readTestSuitesByFile(resultsFiles).map { it.second }
+
+/** Like [readTestSuites], but pairs each suite with the file it came from. */
+fun GradingContext.readTestSuitesByFile(resultsFiles: List<Path>): List<Pair<Path, JUnitSuite>> {
+    val cache = artifactCache
+    return resultsFiles
+        .parallelMap { path ->
+            cache.getOrCompute("junit", path) { path.readJUnitSuite().map { it.toOutcome() } }
+                .map { Pair(path, it.toJUnitSuite()) }
+                .asList()
+        }
+        .flatten()
+}
 
-    return if (testResultFiles.isEmpty()) {
+/**
+ * Scores the given test outcomes against the plan, one [EvaluatorResult] per topic, or
+ * returns a single failing result if there were no test results at all (null).
+ */
+fun GradingPlan.unitTestResults(outcomes: TestOutcomes?): List<EvaluatorResult> =
+    if (outcomes == null) {
         Log.i("unitTestAggregator", "Yielded zero evaluation results!")
         listOf(
             EvaluatorResult(
-                false, 0.0, this.maxPoints,
+                false, 0.0, project.maxPoints,
                 "No unit tests found!", TESTS_CATEGORY, emptyList()
             )
         )
     } else {
-        val parsedResults = testResultFiles
-            .map { junitSuiteParser(it) }
-            .sortedBy { it.className }
-        val evalResults = parsedResults.eval(this)
+        val evalResults = eval(outcomes)
         Log.i("unitTestAggregator", "Yielded ${evalResults.size} evaluation results")
         evalResults
     }
-}
 
-fun GGradeProject.jacocoAggregator(): List<EvaluatorResult> =
+fun GGradeProject.jacocoAggregator(
+    context: GradingContext,
+    plan: GradingPlan = GradingPlan(this)
+): List<EvaluatorResult> =
     listOf(
         if (coveragePoints == 0.0) {
             passingEvaluatorResult(0.0, "No code coverage requirements", COVERAGE_CATEGORY)
         } else {
-            readFile("${AutoGrader.buildDir}/reports/jacoco/test/jacocoTestReport.xml")
-                .map { jacocoParser(it).eval(this) }
+            context.readCoverage(coverageAnnotations)
+                .map { it.eval(this, context.jacocoHtmlReport, plan.coverageSpecs) }
                 .getOrDefault { jacocoResultsMissing() }
         }
     )
 
+/**
+ * Reads the class-level coverage counters for the classes named by the [coverages] specs,
+ * or for every class if it's null, from the JaCoCo XML report or execution data.
+ */
+fun GradingContext.readCoverage(coverages: List<GGradeCoverage>?): Try<JacocoReport> =
+    if (coverageFromExec) {
+        // We don't cache the execution data path, since its outcome also depends
+        // on every class file.
+        readJacocoExec(coverages)
+    } else {
+        // The streaming parser only keeps the classes named by the coverage specs,
+        // so they're part of the cache key.
+        val path = Paths.get(jacocoReport)
+        artifactCache
+            .getOrCompute("jacoco", path, coverages?.toString() ?: "all") {
+                path.readJacocoReport(coverages).map { it.toClassCoverages() }
+            }
+            .map { it.toJacocoReport() }
+    }
+
 // Unicode note: Even though we're normally expecting our results to appear using
 // a fixed-width font, the drawing symbols and the other Unicode stuff below is
 // going to come elsewhere, meaning that we will have no assurance that we can
@@ -154,18 +372,44 @@ data class ResultsReport(
     val results: List<EvaluatorResult>
 )
 
-/** Given a [GGradeProject], extracts a [ResultsReport]. */
-fun GGradeProject.toResultsReport(): ResultsReport {
-    val results = unitTestAggregator() +
-        (if (warningPoints == 0.0) emptyList() else warningAggregator()) +
-        (if (coveragePoints == 0.0) emptyList() else jacocoAggregator())
+/**
+ * Given a [GGradeProject], extracts a [ResultsReport] from the artifacts found in the build
+ * directory of the [GradingContext]. Nothing global is touched, so this can be called
+ * concurrently for different contexts (see [Grader]). If you're grading many build
+ * directories against the same policy, make one [GradingPlan] and pass it in.
+ */
+fun GGradeProject.toResultsReport(
+    context: GradingContext,
+    plan: GradingPlan = GradingPlan(this)
+): ResultsReport {
+    // The three aggregators are independent, so they run concurrently, but the
+    // results are always assembled in the same order.
+    val unitTestFuture = ingestAsync { unitTestAggregator(context, plan) }
+
+    // Coverage measured by a test worker's JaCoCo agent isn't there until the tests have run.
+    if (context.runTests && context.testWorkers?.measuresCoverage == true) unitTestFuture.join()
+    val warningFuture = ingestAsync {
+        if (warningPoints == 0.0) emptyList() else warningAggregator(context)
+    }
+    val jacocoFuture = ingestAsync {
+        if (coveragePoints == 0.0) emptyList() else jacocoAggregator(context, plan)
+    }
+
+    return toResultsReport(unitTestFuture.await() + warningFuture.await() + jacocoFuture.await())
+}
 
+/** Assembles the results of all the aggregators into a [ResultsReport]. */
+internal fun GGradeProject.toResultsReport(results: List<EvaluatorResult>): ResultsReport {
     val allPassing = results.fold(true) { a, b -> a && b.passes }
     val allPoints = results.sumByDouble { it.points }
 
     return ResultsReport(name, description, allPassing, allPoints, maxPoints, results)
 }
 
+/** Like [GGradeProject.toResultsReport], for the plan's policy. */
+fun GradingPlan.toResultsReport(context: GradingContext): ResultsReport =
+    project.toResultsReport(context, this)
+
 /** Generates a human-readable report. */
 fun ResultsReport.humanReport(): String {
     val bos = ByteArrayOutputStream()
@@ -222,11 +466,12 @@ fun Deduction.worthPrinting(): Boolean = when {
 }
 
 /**
- * Writes out two files in `build/autograder`, one in JSON format and one in YAML, representing
- * the contents of the [ResultsReport], suitable for subsequent processing, uploading, etc.
- * Also prints the human-readable report, via [ResultsReport.humanReport], to [System.out].
+ * Writes out two files in the [outputDir] (normally `build/autograder`), one in JSON format and
+ * one in YAML, representing the contents of the [ResultsReport], suitable for subsequent
+ * processing, uploading, etc. Also prints the human-readable report, via
+ * [ResultsReport.humanReport], to [System.out].
  */
-fun ResultsReport.writeReports(quiet: Boolean = false) {
+fun ResultsReport.writeReports(quiet: Boolean = false, outputDir: String = DEFAULT_OUTPUT_DIR) {
     val jsonData = jacksonJsonMapper
         .writer()
         .withDefaultPrettyPrinter()
@@ -234,9 +479,9 @@ fun ResultsReport.writeReports(quiet: Boolean = false) {
     val yamlData = yamlHeader + (jacksonYamlMapper.writeValueAsString(this) ?: "")
     val txtData = humanReport()
 
-    val jsonReport = "build/autograder/report.json"
-    val yamlReport = "build/autograder/report.yml"
-    val txtReport = "build/autograder/report.txt"
+    val jsonReport = "$outputDir/report.json"
+    val yamlReport = "$outputDir/report.yml"
+    val txtReport = "$outputDir/report.txt"
 
     writeFile(jsonReport, jsonData)
     writeFile(yamlReport, yamlData)
@@ -0,0 +1,248 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import arrow.core.Try
+import arrow.core.getOrElse
+import com.fasterxml.jackson.module.kotlin.readValue
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.security.DigestInputStream
+import java.security.MessageDigest
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicInteger
+
+private const val TAG = "ArtifactCache"
+
+// Students run the autograder over and over, and CI runs it on every push, even when
+// nothing relevant has changed (e.g., after editing the README). The artifact cache
+// remembers the parsed, normalized outcome from each input artifact (a test results
+// file, a CheckStyle report, etc.), keyed by a hash of the artifact's bytes, so we
+// only pay to parse an artifact when it changes. The grading itself, which is cheap,
+// is always done from scratch. Every hit marks its entry as recently used, and each time
+// the cache is opened, the least recently used entries are thrown away until the cache
+// fits in ARTIFACT_CACHE_MAX_BYTES.
+
+/**
+ * Bump this whenever the format of anything stored in the cache changes, so old
+ * entries are never misread.
+ */
+const val ARTIFACT_CACHE_FORMAT = 1
+
+/** How big the cache may grow, in bytes, before old entries are evicted. */
+const val ARTIFACT_CACHE_MAX_BYTES = 256L * 1024 * 1024
+
+/**
+ * The version of RiceChecks that's running, from the jar manifest, or "dev" if
+ * we're not running from a jar (e.g., inside the IDE).
+ */
+val riceChecksVersion: String by lazy {
+    ArtifactCache::class.java.`package`?.implementationVersion ?: "dev"
+}
+
+/**
+ * A directory of cached artifact outcomes. Entries are written atomically, so any
+ * number of threads (or processes) can share a cache, and a corrupt or unreadable
+ * entry is treated as a miss. Use [ArtifactCache.open] to get one, which makes
+ * sure that entries from other versions of RiceChecks are thrown away. The [hits]
+ * and [misses] count lookups through this instance, by way of [getOrCompute].
+ */
+class ArtifactCache private constructor(val cacheDir: Path) {
+    val hits = AtomicInteger(0)
+    val misses = AtomicInteger(0)
+
+    companion object {
+        private const val VERSION_FILE = "VERSION"
+
+        /**
+         * Opens the cache in the given directory, creating it if necessary. If the
+         * cache was written by a different version of RiceChecks, or with a different
+         * [ARTIFACT_CACHE_FORMAT], all of its entries are deleted first. Otherwise, the
+         * least recently used entries are evicted until the rest fit in [maxBytes].
+         */
+        fun open(cacheDir: Path, maxBytes: Long = ARTIFACT_CACHE_MAX_BYTES): ArtifactCache {
+            val version = "$riceChecksVersion/$ARTIFACT_CACHE_FORMAT"
+            val versionFile = cacheDir.resolve(VERSION_FILE)
+            val oldVersion = versionFile.readFile().getOrElse { "" }
+
+            if (oldVersion != version) {
+                Log.i(TAG, "cache version changed ($oldVersion -> $version), clearing $cacheDir")
+                readdirPath(cacheDir.toString())
+                    .getOrElse { emptyList() }
+                    .forEach { it.deleteQuietly() }
+                versionFile.mkdirAndWriteFile(version)
+            } else {
+                evict(cacheDir, maxBytes)
+            }
+
+            return ArtifactCache(cacheDir)
+        }
+
+        private fun evict(cacheDir: Path, maxBytes: Long) {
+            val entries = readdirPath(cacheDir.toString())
+                .getOrElse { emptyList() }
+                .filter { it.fileName.toString().endsWith(".json") }
+                .mapNotNull { path ->
+                    Try {
+                        Triple(path, Files.getLastModifiedTime(path), Files.size(path))
+                    }.getOrElse { null }
+                }
+                .sortedByDescending { it.second }
+
+            var total = 0L
+            entries.forEach { (path, _, size) ->
+                total += size
+                if (total > maxBytes) path.deleteQuietly()
+            }
+        }
+
+        // Another process might be using the same cache, so anything we can't delete
+        // (say, because it's already gone, or it's a directory someone put there) isn't
+        // worth failing over.
+        private fun Path.deleteQuietly() {
+            Try { Files.deleteIfExists(this) }.onFailure {
+                Log.e(TAG, "failed to delete $this", it)
+            }
+        }
+    }
+
+    /**
+     * Computes the key for the given kind of artifact, hashing the artifact's contents
+     * along with the [salt], which should capture anything else that affects the cached
+     * outcome (e.g., the relevant parts of the grading policy). Returns null if the
+     * artifact can't be read, in which case there's nothing to cache.
+     */
+    fun key(kind: String, artifact: Path, salt: String = ""): String? = Try {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update("$riceChecksVersion/$ARTIFACT_CACHE_FORMAT/$kind/$salt\n".toByteArray())
+
+        // We stream the artifact through the digest, since it might be huge.
+        DigestInputStream(Files.newInputStream(artifact), digest).use { input ->
+            val buffer = ByteArray(64 * 1024)
+            while (input.read(buffer) >= 0) {
+                // nothing to do but keep reading
+            }
+        }
+
+        "$kind-" + digest.digest().joinToString("") { "%02x".format(it) }
+    }.getOrElse { null }
+
+    /**
+     * Fetches the raw bytes of a cache entry, or null if there isn't one, and marks the
+     * entry as recently used, so it's the last to be evicted.
+     */
+    fun load(key: String): ByteArray? {
+        val entry = cacheDir.resolve("$key.json")
+        return Try {
+            val bytes = Files.readAllBytes(entry)
+            val now = FileTime.fromMillis(System.currentTimeMillis())
+            Try { Files.setLastModifiedTime(entry, now) }
+            bytes
+        }.getOrElse { null }
+    }
+
+    /**
+     * Stores the raw bytes of a cache entry, writing to a temporary file first and then
+     * moving it into place, so readers never see a partially written entry.
+     */
+    fun store(key: String, data: ByteArray) {
+        Try {
+            Files.createDirectories(cacheDir)
+            val tmpFile = cacheDir.resolve("$key.${UUID.randomUUID()}.tmp")
+            Files.write(tmpFile, data)
+            try {
+                Files.move(
+                    tmpFile, cacheDir.resolve("$key.json"),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING
+                )
+            } finally {
+                Files.deleteIfExists(tmpFile)
+            }
+        }.onFailure {
+            Log.e(TAG, "failed to write cache entry $key", it)
+        }
+    }
+}
+
+/**
+ * If there's a cache, returns the cached outcome for the given [artifact], if there is
+ * one, or otherwise runs [compute] and, if it succeeds, caches its outcome. If there's
+ * no cache, or the artifact can't be read, this just runs [compute]. Failures are never
+ * cached, so a missing or broken artifact will be looked at again next time.
+ */
+inline fun <reified T : Any> ArtifactCache?.getOrCompute(
+    kind: String,
+    artifact: Path,
+    salt: String = "",
+    compute: () -> Try<T>
+): Try<T> {
+    val key = this?.key(kind, artifact, salt) ?: return compute()
+
+    val cached = load(key)?.let { bytes ->
+        Try { jacksonJsonMapper.readValue<T>(bytes) }.getOrElse { null }
+    }
+    if (cached != null) {
+        Log.i("ArtifactCache", "cache hit: $artifact")
+        hits.incrementAndGet()
+        return Try.just(cached)
+    }
+
+    Log.i("ArtifactCache", "cache miss: $artifact")
+    misses.incrementAndGet()
+    return compute().map { outcome ->
+        store(key, jacksonJsonMapper.writeValueAsBytes(outcome))
+        outcome
+    }
+}
+
+/** One test case from a JUnit results file, with only what grading needs. */
+data class TestCaseOutcome(
+    val className: String?,
+    val methodName: String?,
+    val passed: Boolean
+)
+
+/** The cached form of a [JUnitSuite]. */
+data class SuiteOutcome(
+    val className: String?,
+    val tests: List<TestCaseOutcome>
+)
+
+fun JUnitSuite.toOutcome() = SuiteOutcome(
+    className,
+    tests.orEmpty().map { TestCaseOutcome(it.className, it.methodName, it.failure == null) }
+)
+
+fun SuiteOutcome.toJUnitSuite() = JUnitSuite(
+    className = className,
+    tests = if (tests.isEmpty()) null else tests.map {
+        JTestCase(it.methodName, it.className, failure = if (it.passed) null else JFailure())
+    }
+)
+
+/** One class from a JaCoCo report, with only its class-level counters. */
+data class ClassCoverage(
+    val packageName: String?,
+    val className: String?,
+    val counters: List<JacocoCounter>?
+)
+
+fun JacocoReport.toClassCoverages() =
+    packages.orEmpty().flatMap { jpackage ->
+        jpackage.classes.orEmpty().map { ClassCoverage(jpackage.name, it.name, it.counters) }
+    }
+
+fun List<ClassCoverage>.toJacocoReport() = JacocoReport(
+    packages = groupBy { it.packageName }.map { (packageName, classes) ->
+        JacocoPackage(
+            packageName,
+            classes.map { JacocoClass(it.className, counters = it.counters) }
+        )
+    }
+)
@@ -9,16 +9,30 @@ package edu.rice.autograder
 import arrow.core.Try
 import com.beust.jcommander.JCommander
 import com.beust.jcommander.Parameter
+import java.nio.file.Files
+import java.nio.file.Paths
 import kotlin.system.exitProcess
 
 enum class Task {
-    debugAnnotations, writeConfig, grade
+    debugAnnotations, writeConfig, compilePolicy, writeTestFilter, writeShards, grade,
+    gradeBatch, snapshot, rescore
 }
 
 private const val TAG = "GradleResultScanner"
 const val AutoGraderName = "RiceChecks"
 
-object AutoGrader {
+/**
+ * Thrown to unwind out of [AutoGrader.autoGrade] once a task is finished, carrying whether
+ * it passed. We don't need a stack trace for that.
+ */
+private class AutoGraderExit(val passing: Boolean) : RuntimeException(null, null, false, false)
+
+/**
+ * The command-line front end for the autograder. Each instance handles one set of
+ * arguments; see [main] for running it as its own process and [runAutoGrader] for running
+ * it inside of something else, like the Gradle daemon.
+ */
+class AutoGrader {
     // All these annotations are really configuration parameters for JCommander,
     // which parses the command-line arguments and fills out the variables.
     @JvmField
@@ -31,10 +45,18 @@ object AutoGrader {
     @JvmField
     @Parameter(
         names = ["--project"],
-        description = "Name of the project to be graded (required)", required = true
+        description = "Name of the project to be graded (required, unless --all-projects)"
     )
     var project: String? = null
 
+    @JvmField
+    @Parameter(
+        names = ["--all-projects"],
+        description = "Grade every project found in the --package, rather than just " +
+            "the --project, writing each report to a subdirectory of the output directory"
+    )
+    var allProjects: Boolean = false
+
     @JvmField
     @Parameter(
         names = ["--config"],
@@ -42,6 +64,37 @@ object AutoGrader {
     )
     var configFileName: String? = null
 
+    @JvmField
+    @Parameter(
+        names = ["--compiled-config"],
+        description = "Name of the compiled configuration file written by compilePolicy " +
+            "(default: the --config file name, ending in .policy)"
+    )
+    var compiledConfigFileName: String? = null
+
+    @JvmField
+    @Parameter(
+        names = ["--test-filter"],
+        description = "Name of the test filter file written by writeTestFilter " +
+            "(default: graded-tests.txt in the output directory)"
+    )
+    var testFilterFileName: String? = null
+
+    @JvmField
+    @Parameter(
+        names = ["--shards"],
+        description = "Number of test shards for writeShards to split the graded test classes into"
+    )
+    var numShards: Int = 2
+
+    @JvmField
+    @Parameter(
+        names = ["--shard-dir"],
+        description = "Directory where writeShards writes its shard-N.txt files " +
+            "(default: shards in the output directory)"
+    )
+    var shardDir: String? = null
+
     @JvmField
     @Parameter(
         names = ["--quiet"],
@@ -67,6 +120,123 @@ object AutoGrader {
     @Parameter(names = ["--build-dir"], description = "Build directory")
     var buildDir: String = "./build"
 
+    @JvmField
+    @Parameter(
+        names = ["--output-dir"],
+        description = "Directory where reports are written (default: $DEFAULT_OUTPUT_DIR)"
+    )
+    var outputDir: String = DEFAULT_OUTPUT_DIR
+
+    @JvmField
+    @Parameter(
+        names = ["--graded-tests-only"],
+        description = "Only read test results for the test classes named in the grading policy"
+    )
+    var gradedTestsOnly: Boolean = false
+
+    @JvmField
+    @Parameter(
+        names = ["--jacoco-exec"],
+        description = "Compute coverage from JaCoCo's execution data rather than its XML report"
+    )
+    var coverageFromExec: Boolean = false
+
+    @JvmField
+    @Parameter(
+        names = ["--test-results-dir"],
+        description = "Directory of JUnit XML results, relative to the build directory " +
+            "(default: test-results/test); repeat it to merge the results of several test shards"
+    )
+    var testResultsDirNames: List<String> = ArrayList()
+
+    @JvmField
+    @Parameter(
+        names = ["--jacoco-exec-file"],
+        description = "JaCoCo execution data file for --jacoco-exec, relative to the build " +
+            "directory (default: jacoco/test.exec); repeat it to merge several test shards"
+    )
+    var jacocoExecNames: List<String> = ArrayList()
+
+    @JvmField
+    @Parameter(
+        names = ["--run-tests"],
+        description = "Run the graded tests in-process with the JUnit Platform, rather than " +
+            "reading Gradle's XML results (the test classes must be on the classpath)"
+    )
+    var runTests: Boolean = false
+
+    @JvmField
+    @Parameter(
+        names = ["--fail-fast"],
+        description = "With --run-tests, don't run the rest of a topic's tests once it has " +
+            "lost all of its points"
+    )
+    var failFast: Boolean = false
+
+    @JvmField
+    @Parameter(
+        names = ["--test-workers"],
+        description = "With --run-tests, run each submission's tests in one of this many " +
+            "pre-started test worker JVMs, rather than in this one (default: 0, for none)"
+    )
+    var numTestWorkers: Int = 0
+
+    @JvmField
+    @Parameter(
+        names = ["--worker-uses"],
+        description = "Number of submissions a test worker runs before it's replaced"
+    )
+    var workerUses: Int = 50
+
+    @JvmField
+    @Parameter(
+        names = ["--worker-timeout"],
+        description = "Milliseconds a test worker may spend on one submission's tests " +
+            "before it's stopped and replaced"
+    )
+    var workerTimeoutMillis: Long = 10 * 60 * 1000L
+
+    @JvmField
+    @Parameter(
+        names = ["--test-classpath"],
+        description = "Jar file or directory each submission's tests need on a test worker, " +
+            "such as the JUnit Jupiter engine; repeat it for each one"
+    )
+    var testClasspath: List<String> = ArrayList()
+
+    @JvmField
+    @Parameter(
+        names = ["--jacoco-agent"],
+        description = "JaCoCo agent jar to attach to each test worker, which then writes " +
+            "each submission's execution data for --jacoco-exec"
+    )
+    var jacocoAgent: String? = null
+
+    @JvmField
+    @Parameter(
+        names = ["--cache"],
+        description = "Remember parsed build artifacts in the output directory, " +
+            "so unchanged artifacts aren't parsed again"
+    )
+    var useCache: Boolean = false
+
+    @JvmField
+    @Parameter(
+        names = ["--submissions"],
+        description = "Build directories or glob patterns to grade " +
+            "(used by gradeBatch, snapshot, and rescore)",
+        variableArity = true
+    )
+    var submissions: List<String> = ArrayList()
+
+    @JvmField
+    @Parameter(
+        names = ["--threads"],
+        description = "Number of threads for scanning annotations and for grading " +
+            "submissions concurrently (used by gradeBatch, snapshot, and rescore)"
+    )
+    var numThreads: Int = Runtime.getRuntime().availableProcessors()
+
     @JvmField
     @Parameter(description = "task")
     var taskString: String = "grade"
@@ -75,7 +245,20 @@ object AutoGrader {
 
     private lateinit var commandParser: JCommander
 
-    private fun helpDumpAndExit() {
+    // The test workers are only started if a task needs them, and stopped when it's done.
+    private val testWorkersLazy = lazy {
+        if (!runTests || numTestWorkers < 1) {
+            null
+        } else {
+            TestWorkerPool(
+                numTestWorkers, workerUses, workerTimeoutMillis, testClasspath,
+                jacocoAgent = jacocoAgent, logDir = Paths.get(outputDir, "test-workers")
+            )
+        }
+    }
+    private val testWorkers by testWorkersLazy
+
+    private fun helpDumpAndExit(): Nothing {
         commandParser.usage()
         print(
             "\n$AutoGraderName supports these tasks:\n" +
@@ -87,15 +270,66 @@ object AutoGrader {
                 "      file for the requested project to the filename specified by the\n" +
                 "      --config parameter. Also requires a --package argument.\n" +
                 "\n" +
+                ". compilePolicy: Reads the YAML config file given by --config and writes\n" +
+                "      it in a compact binary form, which loads faster, to the filename\n" +
+                "      specified by --compiled-config.\n" +
+                "\n" +
+                ". writeTestFilter: Loads the autograder spec, just like grade, and writes\n" +
+                "      the graded tests, one Class.method pattern per line, to the filename\n" +
+                "      specified by --test-filter, for use with Gradle's --tests option, so\n" +
+                "      the tests that don't count toward the grade don't need to run.\n" +
+                "      Warns if the policy awards coverage points, since coverage is then\n" +
+                "      only measured over the graded tests.\n" +
+                "\n" +
+                ". writeShards: Loads the autograder spec, just like grade, and splits the\n" +
+                "      graded test classes into --shards balanced shards, using how long\n" +
+                "      each class took in the last test results, writing one class name per\n" +
+                "      line to shard-1.txt, shard-2.txt, etc., in the --shard-dir.\n" +
+                "\n" +
                 ". grade: The default task, loads the autograder spec for the requested\n" +
-                "      project. --config can be used to specify a YAML file for the project\n" +
-                "      autograde spec, or, by default, the autograde spec is loaded from the\n" +
-                "      code annotations, which requires a --package argument.\n"
+                "      project. --config can be used to specify a YAML or compiled file for\n" +
+                "      the project autograde spec, or, by default, the autograde spec is\n" +
+                "      loaded from the code annotations, which requires a --package argument.\n" +
+                "      With --all-projects, every project in the --package is graded, and\n" +
+                "      each report goes to a subdirectory of the output directory named for\n" +
+                "      its project.\n" +
+                "\n" +
+                ". gradeBatch: Loads the autograder spec once, just like grade, then grades\n" +
+                "      every build directory given with --submissions (glob patterns are\n" +
+                "      fine), using up to --threads at once. Each submission's report is\n" +
+                "      written to its own build directory, with a summary written to\n" +
+                "      build/autograder.\n" +
+                "\n" +
+                ". snapshot: Reads all the results in the build directory, or in each of\n" +
+                "      the --submissions, and writes a snapshot of them to the output\n" +
+                "      directory. The snapshot doesn't depend on the grading policy.\n" +
+                "\n" +
+                ". rescore: Loads the autograder spec, just like grade, then applies it to\n" +
+                "      the snapshot for the build directory, or for each of the\n" +
+                "      --submissions, without reading the results again.\n"
         )
         exitGrader(false)
     }
 
-    private fun exitGrader(passing: Boolean): Nothing = exitProcess(if (passing) 0 else 1)
+    private fun exitGrader(passing: Boolean): Nothing = throw AutoGraderExit(passing)
+
+    /**
+     * Scans for annotations, as in [scanEverything], but if there's anything wrong with
+     * them, prints the problem and exits rather than dumping a stack trace. The results of
+     * the scan are saved in the output directory, so we can skip the next scan if nothing
+     * has been recompiled.
+     */
+    private fun scanOrExit(packageName: String): Map<String, GGradeProject> =
+        try {
+            scanEverything(
+                packageName,
+                scanIndexFile = Paths.get(outputDir, SCAN_INDEX_FILE),
+                numThreads = numThreads
+            )
+        } catch (e: AnnotationScannerException) {
+            System.err.println("$AutoGraderName: ${e.message}")
+            exitGrader(false)
+        }
 
     private fun loadEnvironmentVariables() {
         val env = System.getenv()
@@ -106,7 +340,21 @@ object AutoGrader {
         }
     }
 
-    fun autoGrade(args: Array<String>) {
+    /**
+     * Parses the arguments and runs the requested task, returning whether it passed.
+     * Unlike [main], this never exits the process.
+     */
+    fun autoGrade(args: Array<String>): Boolean =
+        try {
+            runTask(args)
+            true
+        } catch (e: AutoGraderExit) {
+            e.passing
+        } finally {
+            if (testWorkersLazy.isInitialized()) testWorkersLazy.value?.close()
+        }
+
+    private fun runTask(args: Array<String>) {
         commandParser = JCommander.newBuilder()
             .addObject(this)
             .programName(AutoGraderName)
@@ -128,6 +376,16 @@ object AutoGrader {
         Try { Log.setLogLevel(logString) }
             .onFailure { helpDumpAndExit() }
 
+        if (failFast && !runTests) {
+            println("--fail-fast requires --run-tests")
+            helpDumpAndExit()
+        }
+
+        if (numTestWorkers > 0 && (!runTests || failFast)) {
+            println("--test-workers requires --run-tests, without --fail-fast")
+            helpDumpAndExit()
+        }
+
         Log.i(TAG, "Starting GradleResultScanner for $task")
         Log.logProperties()
         Log.i(TAG, "project: $project")
@@ -144,7 +402,7 @@ object AutoGrader {
             Task.debugAnnotations -> {
                 if (lProject != null && lPackageName != null) {
                     Log.i(TAG, "scanning package($lPackageName), for project($lProject)")
-                    val gproject = scanEverything(lPackageName)[lProject]
+                    val gproject = scanOrExit(lPackageName)[lProject]
                     if (gproject == null) {
                         Log.e(TAG, "No annotations found for project($lProject)")
                         println("No annotations found for project($lProject)")
@@ -165,7 +423,7 @@ object AutoGrader {
                         "scanning package($lPackageName), writing configuration for " +
                             "project($lProject) to $lConfigFileName"
                     )
-                    val gproject = scanEverything(lPackageName)[lProject]
+                    val gproject = scanOrExit(lPackageName)[lProject]
                     if (gproject == null) {
                         Log.e(TAG, "No annotations found for project($lProject)")
                         println("No annotations found for project($lProject)")
@@ -191,7 +449,95 @@ object AutoGrader {
                     helpDumpAndExit()
                 }
 
+            Task.compilePolicy ->
+                if (lConfigFileName != null) {
+                    val lCompiledConfigFileName = compiledConfigFileName
+                        ?: lConfigFileName.replace(Regex("""\.ya?ml$"""), "") + ".policy"
+                    Log.i(
+                        TAG,
+                        "compiling $lConfigFileName to $lCompiledConfigFileName"
+                    )
+                    val bytes = loadConfig(lConfigFileName).compilePolicy()
+                    Try {
+                        val path = Paths.get(lCompiledConfigFileName)
+                        path.parent?.let { Files.createDirectories(it) }
+                        Files.write(path, bytes)
+                    }.onSuccess {
+                        println("Compiled policy written to $lCompiledConfigFileName")
+                        exitGrader(true)
+                    }.onFailure {
+                        println("Error writing to $lCompiledConfigFileName: ${it.message}")
+                        exitGrader(false)
+                    }
+                } else {
+                    helpDumpAndExit()
+                }
+
+            Task.writeTestFilter -> {
+                val gproject = loadProject(lConfigFileName, lProject, lPackageName)
+                val lTestFilterFileName = testFilterFileName ?: "$outputDir/graded-tests.txt"
+                val patterns = GradingPlan(gproject).testFilterPatterns
+                warnIfCoverageGraded(gproject)
+
+                Log.i(TAG, "writing ${patterns.size} test filters to $lTestFilterFileName")
+                writeFile(lTestFilterFileName, patterns.joinToString("") { "$it\n" })
+                    .onSuccess {
+                        if (!quiet) {
+                            println(
+                                "${patterns.size} graded tests written to $lTestFilterFileName"
+                            )
+                        }
+                        exitGrader(true)
+                    }
+                    .onFailure {
+                        println("Error writing to $lTestFilterFileName: ${it.message}")
+                        exitGrader(false)
+                    }
+            }
+
+            Task.writeShards -> {
+                if (numShards < 1) {
+                    println("--shards must be at least 1")
+                    helpDumpAndExit()
+                }
+                val gproject = loadProject(lConfigFileName, lProject, lPackageName)
+                val lShardDir = shardDir ?: "$outputDir/shards"
+                val durations = gradingContext(buildDir, outputDir).testClassDurations()
+                val shards =
+                    planShards(GradingPlan(gproject).gradedClassNames, durations, numShards)
+                warnIfCoverageGraded(gproject)
+
+                writeShards(lShardDir, shards)
+                    .onSuccess {
+                        if (!quiet) println("${shards.size} test shards written to $lShardDir")
+                        exitGrader(true)
+                    }
+                    .onFailure {
+                        println("Error writing shards to $lShardDir: ${it.message}")
+                        exitGrader(false)
+                    }
+            }
+
             Task.grade -> when {
+                allProjects -> {
+                    if (lConfigFileName != null || lProject != null || lPackageName == null) {
+                        println("--all-projects requires --package, without --config or --project")
+                        helpDumpAndExit()
+                    }
+                    Log.i(TAG, "Running autograder for all projects in package($lPackageName)")
+
+                    val gprojects = scanOrExit(lPackageName).values.sortedBy { it.name }
+                    if (gprojects.isEmpty()) {
+                        Log.e(TAG, "No annotations found in package($lPackageName)")
+                        println("No annotations found in package($lPackageName)")
+                        exitGrader(false)
+                    }
+
+                    val reports = Grader(gradingContext(buildDir, outputDir)).gradeAll(gprojects)
+                    reports.forEach { it.writeReports(quiet, "$outputDir/${it.projectName}") }
+                    exitGrader(reports.all { it.allPassing })
+                }
+
                 lConfigFileName != null && lPackageName != null -> {
                     println("Please specify either --config or --package, but not both")
                     helpDumpAndExit()
@@ -203,8 +549,9 @@ object AutoGrader {
                         "Running autograder with " +
                             "configFileName($lConfigFileName), project($lProject)"
                     )
-                    val report = loadConfig(lConfigFileName).toResultsReport()
-                    report.writeReports(quiet)
+                    val grader = Grader(gradingContext(buildDir, outputDir))
+                    val report = grader.grade(loadConfig(lConfigFileName))
+                    grader.writeReports(report, quiet)
                     exitGrader(report.allPassing)
                 }
 
@@ -215,35 +562,189 @@ object AutoGrader {
                             "package($lPackageName), project($lProject)"
                     )
 
-                    val gproject = scanEverything(lPackageName)[lProject]
+                    val gproject = scanOrExit(lPackageName)[lProject]
                     if (gproject == null) {
                         Log.e(TAG, "No annotations found for project($lProject)")
                         println("No annotations found for project($lProject)")
                         exitGrader(false)
                     } else {
-                        val report = gproject.toResultsReport()
-                        report.writeReports(quiet)
+                        val grader = Grader(gradingContext(buildDir, outputDir))
+                        val report = grader.grade(gproject)
+                        grader.writeReports(report, quiet)
                         exitGrader(report.allPassing)
                     }
                 }
 
                 else -> helpDumpAndExit()
             }
+
+            Task.gradeBatch -> {
+                val gproject = loadProject(lConfigFileName, lProject, lPackageName)
+                val buildDirs = expandSubmissions()
+
+                Log.i(
+                    TAG,
+                    "Running batch autograder for project($lProject) " +
+                        "on ${buildDirs.size} submissions"
+                )
+                val summary = gproject.gradeBatch(buildDirs, numThreads) {
+                    gradingContext(it, "$it/autograder")
+                }
+                summary.writeReports(quiet, outputDir)
+                exitGrader(summary.allPassing)
+            }
+
+            Task.snapshot -> {
+                val entries =
+                    if (submissions.isEmpty()) {
+                        snapshotBatch(listOf(buildDir), 1) { gradingContext(it, outputDir) }
+                    } else {
+                        snapshotBatch(expandSubmissions(), numThreads) {
+                            gradingContext(it, "$it/autograder")
+                        }
+                    }
+
+                entries
+                    .filter { it.error != null }
+                    .forEach { println("Failed to take a snapshot of ${it.buildDir}: ${it.error}") }
+                if (!quiet) println("Snapshots written for ${entries.size} build directories")
+                exitGrader(entries.all { it.error == null })
+            }
+
+            Task.rescore -> {
+                val gproject = loadProject(lConfigFileName, lProject, lPackageName)
+
+                if (submissions.isEmpty()) {
+                    val report = gradingContext(buildDir, outputDir)
+                        .readSnapshot()
+                        .map { it.rescore(gproject) }
+                        .onFailure {
+                            println("Failed to rescore $buildDir: ${it.message}")
+                            exitGrader(false)
+                        }
+                        .getOrFail()
+                    report.writeReports(quiet, outputDir)
+                    exitGrader(report.allPassing)
+                } else {
+                    val summary = gproject.rescoreBatch(expandSubmissions(), numThreads) {
+                        gradingContext(it, "$it/autograder")
+                    }
+                    summary.writeReports(quiet, outputDir)
+                    exitGrader(summary.allPassing)
+                }
+            }
         }
     }
 
-    private fun loadConfig(yamlFileName: String): GGradeProject =
-        readFile(yamlFileName)
-            .flatMap { yamlImporter(it) }
+    /**
+     * Loads the policy for the batch tasks and writeTestFilter, either from the
+     * [configFileName] or by scanning the annotations in the [packageName], exiting if
+     * that doesn't work out.
+     */
+    private fun loadProject(
+        configFileName: String?,
+        project: String?,
+        packageName: String?
+    ): GGradeProject {
+        val gproject = when {
+            configFileName != null && packageName != null -> {
+                println("Please specify either --config or --package, but not both")
+                helpDumpAndExit()
+            }
+
+            configFileName != null && project != null -> loadConfig(configFileName)
+
+            configFileName == null && project != null && packageName != null ->
+                scanOrExit(packageName)[project]
+
+            else -> helpDumpAndExit()
+        }
+
+        if (gproject == null) {
+            Log.e(TAG, "No annotations found for project($project)")
+            println("No annotations found for project($project)")
+            exitGrader(false)
+        }
+
+        return gproject
+    }
+
+    /**
+     * When only the graded tests run, JaCoCo only sees the coverage they provide, so a
+     * policy that awards points for coverage might lose some; warns, even if [quiet],
+     * since there's no telling whether the ungraded tests were pulling their weight.
+     */
+    private fun warnIfCoverageGraded(gproject: GGradeProject) {
+        if (gproject.coveragePoints > 0.0) {
+            val warning = "Warning: only the graded tests will run, but project(${gproject.name})" +
+                " awards ${gproject.coveragePoints} points for coverage, which will only count" +
+                " those tests"
+            Log.e(TAG, warning)
+            println(warning)
+        }
+    }
+
+    /** Expands the --submissions patterns, exiting if there's nothing to grade. */
+    private fun expandSubmissions(): List<String> {
+        val buildDirs = expandBuildDirs(submissions)
+        if (buildDirs.isEmpty()) {
+            println("No submissions found to grade; please specify --submissions")
+            helpDumpAndExit()
+        }
+        return buildDirs
+    }
+
+    private fun gradingContext(buildDir: String, outputDir: String): GradingContext {
+        val context = GradingContext(
+            buildDir = buildDir,
+            outputDir = outputDir,
+            gradedTestsOnly = gradedTestsOnly,
+            coverageFromExec = coverageFromExec,
+            useCache = useCache,
+            runTests = runTests,
+            failFast = failFast,
+            testWorkers = testWorkers
+        )
+
+        // Relative to each build directory, so they work with gradeBatch, too.
+        fun resolve(names: List<String>) = names.map { Paths.get(buildDir).resolve(it).toString() }
+
+        return context.copy(
+            testResultsDirs =
+                if (testResultsDirNames.isEmpty()) null
+                else resolve(testResultsDirNames),
+            jacocoExecs = when {
+                // Where the test workers' JaCoCo agent writes this submission's coverage.
+                testWorkers?.measuresCoverage == true -> listOf("$outputDir/test.exec")
+                jacocoExecNames.isEmpty() -> null
+                else -> resolve(jacocoExecNames)
+            }
+        )
+    }
+
+    private fun loadConfig(configFileName: String): GGradeProject =
+        loadPolicy(configFileName)
             .onFailure {
-                Log.e(TAG, "Failed to load $yamlFileName", it)
-                println("Failed to load $yamlFileName: ${it.message}")
+                Log.e(TAG, "Failed to load $configFileName", it)
+                println("Failed to load $configFileName: ${it.message}")
                 exitGrader(false)
             }
             .getOrFail()
 }
 
+/**
+ * Entry point for running the autograder inside of another JVM process, such as the Gradle
+ * daemon, which the `edu.rice.ricechecks` Gradle plugin calls by name. Takes the same
+ * arguments as [main], returning whether the task passed rather than exiting. Annotations
+ * are read from this class's own class loader, which is the one with the student's code.
+ */
+fun runAutoGrader(args: Array<String>): Boolean {
+    return withContextClassLoader(AutoGrader::class.java.classLoader) {
+        AutoGrader().autoGrade(args)
+    }
+}
+
 /** Entry point for calling the autograder from the command-line. */
 fun main(args: Array<String>) {
-    AutoGrader.autoGrade(args)
+    exitProcess(if (AutoGrader().autoGrade(args)) 0 else 1)
 }
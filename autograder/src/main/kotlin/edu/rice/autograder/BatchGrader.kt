@@ -0,0 +1,260 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import arrow.core.Try
+import arrow.core.getOrDefault
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.streams.toList
+
+private const val TAG = "BatchGrader"
+
+// Batch grading: when a course staff member wants to grade hundreds of student
+// submissions, it's silly to launch one JVM per submission, paying the startup cost
+// of Jackson, Kotlin reflection, and so forth, each and every time. Instead, we load
+// the policy once and then grade each build directory concurrently on a bounded
+// pool of worker threads. Each submission gets its own report, written into its own
+// build directory, and we write a summary of the whole batch at the end.
+
+/**
+ * One line in a [BatchSummary]: which build directory was graded and what
+ * the outcome was. If the grader itself failed on this submission, then
+ * [error] explains why and the submission is treated as failing.
+ */
+data class BatchEntry(
+    val buildDir: String,
+    val allPassing: Boolean,
+    val points: Double,
+    val maxPoints: Double,
+    val error: String? = null
+)
+
+/** The result of [GGradeProject.gradeBatch]: one [BatchEntry] per build directory, in order. */
+data class BatchSummary(
+    val projectName: String,
+    val entries: List<BatchEntry>
+) {
+    val allPassing: Boolean
+        get() = entries.all { it.allPassing }
+}
+
+private fun String.hasGlobChars() = any { it in "*?[{" }
+
+/**
+ * Given a list of directory names, some of which might be glob patterns (e.g.,
+ * `submissions/ * /build`, without the spaces), returns the list of matching
+ * directories, sorted and without duplicates. Plain names are passed through unchanged,
+ * whether or not they exist, so that missing build directories are visible
+ * in the batch summary rather than silently dropped.
+ */
+fun expandBuildDirs(patterns: List<String>): List<String> =
+    patterns.flatMap { pattern ->
+        if (!pattern.hasGlobChars()) {
+            listOf(pattern)
+        } else {
+            // We walk from the longest prefix of the pattern that has no wildcards in it,
+            // which keeps us from crawling the entire filesystem.
+            val segments = pattern.split('/')
+            val fixedSegments = segments.takeWhile { !it.hasGlobChars() }
+            val base = when {
+                fixedSegments.isEmpty() -> Paths.get(".")
+                fixedSegments == listOf("") -> Paths.get("/")
+                else -> Paths.get(fixedSegments.joinToString("/"))
+            }
+            val depth =
+                if (pattern.contains("**")) Int.MAX_VALUE
+                else segments.size - fixedSegments.size
+            val matcher = FileSystems.getDefault().getPathMatcher("glob:$pattern")
+            val normalizedPrefix = if (fixedSegments.isEmpty()) "./" else ""
+
+            Try {
+                Files.walk(base, depth).use { stream ->
+                    stream
+                        .filter { Files.isDirectory(it) }
+                        .toList()
+                }
+            }.onFailure {
+                Log.e(TAG, "failed to expand pattern: $pattern", it)
+            }.getOrDefault { emptyList<Path>() }
+                .map { it.toString().removePrefix(normalizedPrefix) }
+                .filter { matcher.matches(Paths.get(it)) }
+        }
+    }.distinct().sorted()
+
+/** By default, each submission's reports are written to its own build directory. */
+fun defaultBatchContext(buildDir: String) =
+    GradingContext(buildDir = buildDir, outputDir = "$buildDir/autograder")
+
+private fun Try<ResultsReport>.toBatchEntry(buildDir: String, maxPoints: Double): BatchEntry =
+    fold(
+        {
+            Log.e(TAG, "failed to grade $buildDir", it)
+            BatchEntry(buildDir, false, 0.0, maxPoints, it.message ?: it.toString())
+        },
+        {
+            Log.i(TAG, "graded $buildDir: ${it.points}/${it.maxPoints}")
+            BatchEntry(buildDir, it.allPassing, it.points, it.maxPoints)
+        }
+    )
+
+private fun GradingPlan.gradeOne(buildDir: String, context: GradingContext): BatchEntry =
+    Try {
+        val grader = Grader(context)
+        grader.grade(this).also { grader.writeReports(it, true) }
+    }.toBatchEntry(buildDir, project.maxPoints)
+
+private fun daemonThreadFactory(): ThreadFactory {
+    val counter = AtomicInteger(0)
+    return ThreadFactory { r ->
+        Thread(r, "$TAG-${counter.incrementAndGet()}").apply { isDaemon = true }
+    }
+}
+
+/**
+ * Grades every one of the [buildDirs] against this [GGradeProject], using at most
+ * [numThreads] concurrent workers. The [contextFor] function gives the [GradingContext]
+ * for each build directory; by default, each submission's report is written to
+ * `autograder/` inside of its own build directory. Returns a [BatchSummary] with
+ * the entries in the same order as [buildDirs].
+ */
+fun GGradeProject.gradeBatch(
+    buildDirs: List<String>,
+    numThreads: Int,
+    contextFor: (String) -> GradingContext = ::defaultBatchContext
+): BatchSummary {
+    Log.i(TAG, "grading ${buildDirs.size} submissions with $numThreads threads")
+
+    // Everything that only depends on the policy is worked out once, up front.
+    val plan = GradingPlan(this)
+
+    return BatchSummary(
+        name,
+        runBatch(buildDirs, numThreads) { plan.gradeOne(it, contextFor(it)) }
+    )
+}
+
+/**
+ * Runs [f] on each of the [buildDirs], using at most [numThreads] concurrent workers,
+ * returning the results in the same order as [buildDirs].
+ */
+private fun <T> runBatch(buildDirs: List<String>, numThreads: Int, f: (String) -> T): List<T> {
+    val pool = Executors.newFixedThreadPool(maxOf(1, numThreads), daemonThreadFactory())
+    return try {
+        buildDirs
+            .map { pool.submit(Callable { f(it) }) }
+            .map { it.get() }
+    } finally {
+        pool.shutdown()
+    }
+}
+
+/** One line in the result of [snapshotBatch]: the [error], if any, for one build directory. */
+data class SnapshotEntry(
+    val buildDir: String,
+    val error: String? = null
+)
+
+/**
+ * Takes an [OutcomeSnapshot] of every one of the [buildDirs], using at most [numThreads]
+ * concurrent workers, writing each one to the output directory given by [contextFor].
+ * Returns one [SnapshotEntry] per build directory, in the same order as [buildDirs].
+ */
+fun snapshotBatch(
+    buildDirs: List<String>,
+    numThreads: Int,
+    contextFor: (String) -> GradingContext = ::defaultBatchContext
+): List<SnapshotEntry> {
+    Log.i(TAG, "taking snapshots of ${buildDirs.size} submissions with $numThreads threads")
+
+    return runBatch(buildDirs, numThreads) { buildDir ->
+        val context = contextFor(buildDir)
+        Try { context.snapshot() }
+            .flatMap { context.writeSnapshot(it) }
+            .fold(
+                {
+                    Log.e(TAG, "failed to take a snapshot of $buildDir", it)
+                    SnapshotEntry(buildDir, it.message ?: it.toString())
+                },
+                { SnapshotEntry(buildDir) }
+            )
+    }
+}
+
+/**
+ * Like [gradeBatch], but rather than reading each build directory's artifacts, this
+ * applies the policy to the [OutcomeSnapshot] previously written by [snapshotBatch]
+ * to each output directory. Reports are written just as they are by [gradeBatch].
+ */
+fun GGradeProject.rescoreBatch(
+    buildDirs: List<String>,
+    numThreads: Int,
+    contextFor: (String) -> GradingContext = ::defaultBatchContext
+): BatchSummary {
+    Log.i(TAG, "rescoring ${buildDirs.size} submissions with $numThreads threads")
+
+    val plan = GradingPlan(this)
+    return BatchSummary(
+        name,
+        runBatch(buildDirs, numThreads) { buildDir ->
+            val context = contextFor(buildDir)
+            context.readSnapshot()
+                .map { snapshot ->
+                    snapshot.rescore(plan).also { it.writeReports(true, context.outputDir) }
+                }
+                .toBatchEntry(buildDir, maxPoints)
+        }
+    )
+}
+
+/** Generates a human-readable summary of the batch, one line per submission. */
+fun BatchSummary.humanReport(): String {
+    val bos = ByteArrayOutputStream()
+    val stream = PrintStream(bos, true, "UTF-8")
+
+    stream.println("Batch autograder summary for $projectName (${entries.size} submissions)")
+    entries.forEach { (buildDir, allPassing, points, maxPoints, error) ->
+        val mark = if (allPassing) "✅" else "❌"
+        val score = if (error == null) "%.1f/%.1f".format(points, maxPoints) else "ERROR"
+        stream.println("%-60s %11s %s".format(buildDir, score, mark))
+        if (error != null) {
+            stream.println("    $error")
+        }
+    }
+    val numPassing = entries.count { it.allPassing }
+    stream.println("Passing: $numPassing of ${entries.size}")
+
+    return bos.toString("UTF-8")
+}
+
+/**
+ * Writes out the batch summary in JSON, YAML, and human-readable formats to the
+ * [outputDir], much like [ResultsReport.writeReports], and prints the human-readable
+ * version unless [quiet] is set.
+ */
+fun BatchSummary.writeReports(quiet: Boolean = false, outputDir: String = DEFAULT_OUTPUT_DIR) {
+    val jsonData = jacksonJsonMapper
+        .writer()
+        .withDefaultPrettyPrinter()
+        .writeValueAsString(this) ?: ""
+    val yamlData = yamlHeader + (jacksonYamlMapper.writeValueAsString(this) ?: "")
+    val txtData = humanReport()
+
+    writeFile("$outputDir/summary.json", jsonData)
+    writeFile("$outputDir/summary.yml", yamlData)
+    writeFile("$outputDir/summary.txt", txtData)
+
+    if (!quiet) print(txtData)
+}
@@ -6,11 +6,15 @@
 
 package edu.rice.autograder
 
+import arrow.core.Try
+import arrow.core.getOrElse
+import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.module.kotlin.readValue
 import io.github.classgraph.AnnotationInfo
-import io.github.classgraph.AnnotationParameterValueList
 import io.github.classgraph.ClassGraph
 import io.github.classgraph.ScanResult
-import kotlin.system.exitProcess
+import java.nio.file.Files
+import java.nio.file.Path
 
 /**
  * When you call [scanEverything], you get back a mapping from project names
@@ -46,7 +50,10 @@ data class GGradeTest(
     val maxPoints: Double,
     val className: String,
     val methodName: String,
-    val testFactory: Boolean = false
+    val testFactory: Boolean = false,
+    // Left out of the YAML when there's no timeout, which is nearly always.
+    @get:JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    val timeoutMillis: Long = 0
 )
 
 data class GGradeCoverage(
@@ -60,15 +67,27 @@ enum class GCoverageScope { PACKAGE, CLASS }
 // Below are internal classes we use while parsing, we'll transform these to the G-classes above
 // when sending output.
 
-private data class AnnotationTuple(
-    val ai: AnnotationInfo,
+/**
+ * One annotation, wherever it came from: the [name] of the annotation class, its
+ * explicitly given parameter [params], and where it was found. Annotations can be
+ * read at runtime with ClassGraph (see [scanEverything]) or at compile time by the
+ * [GradeAnnotationProcessor], and either way they end up as one of these, so all the
+ * validation logic below is shared. Container annotations (e.g., "Grades") are always
+ * expanded into the annotations inside them (e.g., "Grade").
+ */
+internal data class AnnotationTuple(
+    val name: String,
+    val params: Map<String, Any?>,
     val isPackage: Boolean,
     val classOrPackageName: String,
     val methodName: String? = null
 )
 
+/** Thrown when the scanner finds something wrong with the annotations it's reading. */
+class AnnotationScannerException(message: String) : RuntimeException(message)
+
 private typealias ProjectMap = Map<String, IGradeProject>
-private data class IGradeProject(
+internal data class IGradeProject(
     val name: String,
     val description: String,
     val maxPoints: Double,
@@ -101,21 +120,33 @@ private data class IGradeTest(
     val maxPoints: Double,
     val className: String,
     val methodName: String,
-    val testFactory: Boolean = false
+    val testFactory: Boolean = false,
+    val timeoutMillis: Long = 0
 )
 
 private const val A_PREFIX = "edu.rice.autograder.annotations."
-private const val A_GRADE = A_PREFIX + "Grade"
-private const val A_GRADES = A_PREFIX + "Grades"
-private const val A_GRADETOPIC = A_PREFIX + "GradeTopic"
-private const val A_GRADETOPICS = A_PREFIX + "GradeTopics"
-private const val A_GRADEPROJECT = A_PREFIX + "GradeProject"
-private const val A_GRADEPROJECTS = A_PREFIX + "GradeProjects"
-private const val A_GRADECOVERAGE = A_PREFIX + "GradeCoverage"
-private const val A_GRADECOVERAGES = A_PREFIX + "GradeCoverages"
-private const val A_JUNIT4_TEST = "org.junit.Test"
-private const val A_JUNIT5_TEST = "org.junit.jupiter.api.Test"
-private const val A_JUNIT5_TESTFACTORY = "org.junit.jupiter.api.TestFactory"
+internal const val A_GRADE = A_PREFIX + "Grade"
+internal const val A_GRADES = A_PREFIX + "Grades"
+internal const val A_GRADETOPIC = A_PREFIX + "GradeTopic"
+internal const val A_GRADETOPICS = A_PREFIX + "GradeTopics"
+internal const val A_GRADEPROJECT = A_PREFIX + "GradeProject"
+internal const val A_GRADEPROJECTS = A_PREFIX + "GradeProjects"
+internal const val A_GRADECOVERAGE = A_PREFIX + "GradeCoverage"
+internal const val A_GRADECOVERAGES = A_PREFIX + "GradeCoverages"
+internal const val A_JUNIT4_TEST = "org.junit.Test"
+internal const val A_JUNIT5_TEST = "org.junit.jupiter.api.Test"
+internal const val A_JUNIT5_TESTFACTORY = "org.junit.jupiter.api.TestFactory"
+
+/** Maps each repeating container annotation to the annotation it contains. */
+internal val containerAnnotations = mapOf(
+    A_GRADES to A_GRADE,
+    A_GRADETOPICS to A_GRADETOPIC,
+    A_GRADEPROJECTS to A_GRADEPROJECT,
+    A_GRADECOVERAGES to A_GRADECOVERAGE
+)
+
+internal val testAnnotationNames = setOf(A_JUNIT4_TEST, A_JUNIT5_TEST)
+internal val testFactoryAnnotationNames = setOf(A_JUNIT5_TESTFACTORY)
 
 private const val TAG = "CodeAnnotationScanner"
 
@@ -134,9 +165,9 @@ private fun internalScannerErrorX(s: String): Nothing {
 
 /**
  * Call whenever the scanner discovers an "internal" error (i.e., a bug in RiceChecks).
- * Prints the [AnnotationParameterValueList] and the given string, crashes the program.
+ * Prints the annotation parameters and the given string, crashes the program.
 */
-private fun AnnotationParameterValueList?.internalScannerError(s: String): Nothing =
+private fun Map<String, Any?>?.internalScannerError(s: String): Nothing =
     internalScannerErrorX(
         s +
             if (this == null) "\nNull parameter context!!!" else "\nParameter context: $this"
@@ -144,39 +175,39 @@ private fun AnnotationParameterValueList?.internalScannerError(s: String): Nothi
 
 /**
  * Call whenever the scanner discovers an error in the input (i.e., RiceChecks is fine,
- * but there's something wrong with what it's reading). Prints the string, crashes the
- * program.
+ * but there's something wrong with what it's reading). Logs the string and throws an
+ * [AnnotationScannerException]; the command-line front end prints it and exits, while
+ * the [GradeAnnotationProcessor] reports it as a compiler error.
  */
 private fun failScannerX(s: String): Nothing {
     Log.e(TAG, "Terminating: $s")
-    System.err.println("$AutoGraderName: $s")
-    exitProcess(1)
+    throw AnnotationScannerException(s)
 }
 
 /**
  * Call whenever the scanner discovers an error in the input (i.e., RiceChecks is fine,
- * but there's something wrong with what it's reading). Prints the [AnnotationParameterValueList],
- * and the given string, crashes the program.
+ * but there's something wrong with what it's reading). Includes the annotation parameters
+ * along with the given string; see [failScannerX].
  */
-private fun AnnotationParameterValueList?.failScanner(s: String): Nothing =
+private fun Map<String, Any?>?.failScanner(s: String): Nothing =
     failScannerX(
         s +
             if (this == null) "\nNull parameter context!!!" else "\nParameter context: $this"
     )
 
 /**
- * Fetching a value from an [AnnotationParameterValueList] with a default value for
+ * Fetching a value from the annotation parameters with a default value for
  * its absence is awful enough that it's worth having a helper method. This version
  * returns _null_ if there's no parameter of the requested [key]. However, if the
  * parameter is there but has no value, then [default] is returned.
  */
-private inline fun <reified T> AnnotationParameterValueList.lookup(key: String, default: T): T? {
+private inline fun <reified T> Map<String, Any?>.lookup(key: String, default: T): T? {
     // Kotlin FTW: the reified type parameter allows us to have the "is T" query below, which
     // we could never do as easily in Java. Also winning, the type parameter can almost always
     // get inferred from "default", so we never need to explicitly state the type parameter.
 
-    val o = this[key] ?: return null
-    return when (val v = o.value) {
+    if (key !in this) return null
+    return when (val v = this[key]) {
         null -> default
         is T -> v
         else -> {
@@ -191,22 +222,17 @@ private inline fun <reified T> AnnotationParameterValueList.lookup(key: String,
 }
 
 /**
- * Similar to [AnnotationParameterValueList.lookup], except if the requested [key]
+ * Similar to [lookup], except if the requested [key]
  * is absent altogether, then the [default] value is returned. Nulls are never returned.
  */
 private inline fun <reified T>
-AnnotationParameterValueList.lookupNoNull(key: String, default: T): T =
+Map<String, Any?>.lookupNoNull(key: String, default: T): T =
     lookup(key, default) ?: default
 
-private fun AnnotationParameterValueList.containsNonEmpty(key: String): Boolean {
-    val o = this[key]
-    return o != null && o.value != null
-}
-
 private val coverageMethodNames = enumValues<GCoverageStyle>().map { it.name }
 
-private fun AnnotationTuple.toIGradeProject(): IGradeProject {
-    val pv = ai.parameterValues
+internal fun AnnotationTuple.toIGradeProject(): IGradeProject {
+    val pv = params
 
     val name = pv.lookup("name", "")
     val description = pv.lookupNoNull("description", "")
@@ -221,8 +247,6 @@ private fun AnnotationTuple.toIGradeProject(): IGradeProject {
 
     return with(pv) {
         when {
-            this == null -> internalScannerErrorX("Unexpected null parameter values: $this")
-
             name == null ->
                 failScanner("Malformed GradeProject: no name specified: {$pv}")
 
@@ -274,34 +298,37 @@ private fun AnnotationTuple.toIGradeProject(): IGradeProject {
     }
 }
 
+/**
+ * Validates everything about a GradeTopic annotation that doesn't require knowing
+ * about any other annotations, returning the topic name.
+ */
+internal fun AnnotationTuple.checkGradeTopic(): String {
+    val topic = params.lookupNoNull("topic", "")
+    return if (topic == "") {
+        params.failScanner("Malformed GradeTopic: no topic specified: $params")
+    } else {
+        topic
+    }
+}
+
 private fun AnnotationTuple.toIGradeTopic(pmap: ProjectMap): IGradeTopic {
-    val pv = ai.parameterValues
+    val pv = params
     val projectStr = pv.lookup("project", "")
     val project = pmap[projectStr]
-    val topic = pv.lookupNoNull("topic", "")
     val maxPoints = pv.lookupNoNull("maxPoints", 0.0)
 
-    return with(pv) {
-        when {
-            this == null -> internalScannerErrorX("Unexpected null parameter values: $this")
-
-            project == null ->
-                failScanner(
-                    "Malformed GradeTopic: unknown project " +
-                        "($projectStr not in ${pmap.keys})"
-                )
-
-            topic == "" ->
-                failScanner("Malformed GradeTopic: no topic specified: $this")
-
-            else ->
-                IGradeTopic(project, topic, maxPoints)
-        }
+    return if (project == null) {
+        pv.failScanner(
+            "Malformed GradeTopic: unknown project " +
+                "($projectStr not in ${pmap.keys})"
+        )
+    } else {
+        IGradeTopic(project, checkGradeTopic(), maxPoints)
     }
 }
 
 private fun AnnotationTuple.toIGradeCoverage(pmap: ProjectMap): IGradeCoverage {
-    val pv = ai.parameterValues
+    val pv = params
     val projectName = pv.lookup("project", "")
     val project = pmap[projectName]
     val pvExclude = pv.lookupNoNull("exclude", false)
@@ -318,43 +345,43 @@ private fun AnnotationTuple.toIGradeCoverage(pmap: ProjectMap): IGradeCoverage {
     }
 }
 
-private fun AnnotationTuple.toIGradeTest(
-    pmap: ProjectMap,
+/**
+ * Validates everything about a Grade annotation that can be checked from the method
+ * it's on, without knowing about any other annotations, returning whether the method
+ * is a TestFactory. The sets of [testAnnotations] and [testFactoryAnnotations] have
+ * the full names (class.method) of methods with those JUnit annotations.
+ */
+internal fun AnnotationTuple.checkGradeTest(
     testAnnotations: Set<String>,
     testFactoryAnnotations: Set<String>
-): IGradeTest {
-    val pv = ai.parameterValues
-    val project = pmap[pv.lookup("project", "")]
+): Boolean {
+    val pv = params
     val topic = pv.lookupNoNull("topic", "")
     val points = pv.lookupNoNull("points", 0.0)
     val maxPoints = pv.lookupNoNull("maxPoints", 0.0)
+    val timeoutMillis = pv.timeoutMillis()
 
     val fullMethodName = "$classOrPackageName.$methodName"
 
     return with(pv) {
         when {
-            this == null -> internalScannerErrorX(
-                "Unexpected null parameter values: " +
-                    "${this@toIGradeTest}"
-            )
-
-            project == null -> failScanner(
-                "Malformed GradeTest: unknown project name " +
-                    "(${pv["project"]})"
-            )
-
-            topic == "" -> failScanner("Malformed GradeTest, no topic: ${this@toIGradeTest}")
+            topic == "" -> failScanner("Malformed GradeTest, no topic: ${this@checkGradeTest}")
 
             !points.isFinite() -> internalScannerError("points isn't finite!")
 
             points <= 0.0 -> failScanner(
                 "Malformed GradeTest, points must be positive: " +
-                    "${this@toIGradeTest}"
+                    "${this@checkGradeTest}"
+            )
+
+            timeoutMillis < 0 -> failScanner(
+                "Malformed GradeTest, timeoutMillis must be zero or positive: " +
+                    "${this@checkGradeTest}"
             )
 
             methodName == null -> internalScannerError(
                 "No method name associated with " +
-                    "annotation?! (${this@toIGradeTest})"
+                    "annotation?! (${this@checkGradeTest})"
             )
 
             testAnnotations.contains(fullMethodName) &&
@@ -372,11 +399,7 @@ private fun AnnotationTuple.toIGradeTest(
                 )
 
             // Regular @Test, not a @TestFactory
-            testAnnotations.contains(fullMethodName) ->
-                IGradeTest(
-                    project, topic, points, maxPoints, classOrPackageName,
-                    methodName, false
-                )
+            testAnnotations.contains(fullMethodName) -> false
 
             !maxPoints.isFinite() -> internalScannerError("maxPoints isn't finite!")
 
@@ -391,52 +414,77 @@ private fun AnnotationTuple.toIGradeTest(
                         "points (less than maxPoints) specified"
                 )
 
-            else -> IGradeTest(
-                project, topic, points, maxPoints, classOrPackageName,
-                methodName, true
-            )
+            else -> true
         }
     }
 }
 
+private fun AnnotationTuple.toIGradeTest(
+    pmap: ProjectMap,
+    testAnnotations: Set<String>,
+    testFactoryAnnotations: Set<String>
+): IGradeTest {
+    val pv = params
+    val project = pmap[pv.lookup("project", "")]
+        ?: pv.failScanner("Malformed GradeTest: unknown project name (${pv["project"]})")
+    val testFactory = checkGradeTest(testAnnotations, testFactoryAnnotations)
+
+    return IGradeTest(
+        project,
+        pv.lookupNoNull("topic", ""),
+        pv.lookupNoNull("points", 0.0),
+        pv.lookupNoNull("maxPoints", 0.0),
+        classOrPackageName,
+        methodName ?: pv.internalScannerError("No method name associated with annotation?!"),
+        testFactory,
+        pv.timeoutMillis()
+    )
+}
+
+// ClassGraph gives us a Long, but an integer read back from the annotation index is
+// whatever size of number Jackson thinks fits, so we accept any sort of Number.
+private fun Map<String, Any?>.timeoutMillis(): Long =
+    lookupNoNull<Number>("timeoutMillis", 0L).toLong()
+
 /**
- * When there are multiple annotations of the same kind (e.g., "Grade"), they appear as a
- * different annotation (e.g., "Grades") which has a single parameter within called "value"
- * that has an array of the actual annotations we really want. This helper method takes
- * a list of annotation-tuples, some of which might have this weird array property, and
- * then expands them to the regular annotations within.
+ * Converts a ClassGraph [AnnotationInfo] to a list of [AnnotationTuple]. When there are
+ * multiple annotations of the same kind (e.g., "Grade"), they appear as a different annotation
+ * (e.g., "Grades") which has a single parameter within called "value" that has an array of the
+ * actual annotations we really want. This helper method expands those to the regular annotations
+ * within, so the result might have more than one tuple.
  */
-private fun List<AnnotationTuple>.expandValueList(): List<AnnotationTuple> =
-    flatMap {
-        val (ai, isPackage, classOrPackageName, methodName) = it
-        val pv = ai.parameterValues
-        if (pv.containsNonEmpty("value")) {
-            val emptyArray = Array<Any?>(0) { null }
-            val vlist = pv.lookup<Array<*>>("value", emptyArray)
-                ?: pv.failScanner("    Unexpected empty array when `value' found")
-            vlist.mapNotNull { v ->
-                Log.i(TAG, "    Found: $v")
-                when (v) {
-                    null -> null
-                    is AnnotationInfo ->
-                        AnnotationTuple(v, isPackage, classOrPackageName, methodName)
-                    else -> pv.failScanner(
-                        "    Unexpected class type found: $${v::class.java.simpleName}"
-                    )
-                }
+private fun AnnotationInfo.toTuples(
+    isPackage: Boolean,
+    classOrPackageName: String,
+    methodName: String? = null
+): List<AnnotationTuple> {
+    val pv = parameterValues.associate { it.name to it.value }
+    return if (pv["value"] != null) {
+        val emptyArray = Array<Any?>(0) { null }
+        val vlist = pv.lookup<Array<*>>("value", emptyArray)
+            ?: pv.failScanner("    Unexpected empty array when `value' found")
+        vlist.flatMap { v ->
+            Log.i(TAG, "    Found: $v")
+            when (v) {
+                null -> emptyList()
+                is AnnotationInfo -> v.toTuples(isPackage, classOrPackageName, methodName)
+                else -> pv.failScanner(
+                    "    Unexpected class type found: $${v::class.java.simpleName}"
+                )
             }
-        } else {
-            listOf(it)
         }
+    } else {
+        listOf(AnnotationTuple(name, pv, isPackage, classOrPackageName, methodName))
     }
+}
 
 /**
- * After [expandValueList] has been called, there should be no more "value" items. This check
+ * After [toTuples] has been called, there should be no more "value" items. This check
  * is an assertion that will print warnings if they're still there.
  */
 private fun List<AnnotationTuple>.checkNoValueGroups() {
     forEach {
-        val valueEntry = it.ai.parameterValues.lookupNoNull<Any?>("value", "")
+        val valueEntry = it.params.lookupNoNull<Any?>("value", "")
         if (valueEntry != "") {
             Log.e(TAG, "=== Warning: found `value' in result tuple <$it>")
         }
@@ -451,11 +499,11 @@ private fun ScanResult.packageAnnotations(annotationNames: List<String>): List<A
     Log.i(TAG, "Looking for packages with annotations: $annotationNames")
     return packageInfo
         .filterNotNull()
-        .flatMap { it.annotationInfo.map { ai -> AnnotationTuple(ai, true, it.name) } }
-        .filter {
-            it.ai.name in annotationNames
+        .flatMap {
+            it.annotationInfo
+                .filter { ai -> ai.name in annotationNames }
+                .flatMap { ai -> ai.toTuples(true, it.name) }
         }
-        .expandValueList()
         .also {
             Log.i(TAG, "Total: ${it.size} package annotations found")
             it.checkNoValueGroups()
@@ -464,45 +512,39 @@ private fun ScanResult.packageAnnotations(annotationNames: List<String>): List<A
 
 /**
  * Given a list of desired annotation names (without the @-symbols), returns a list of [AnnotationTuple]
- * describing every matching annotation found on a Java method.
+ * describing every matching annotation found on a Java method. Each class, and each of its
+ * methods, is visited once, no matter how many of the annotations it has.
  */
 private fun ScanResult.methodAnnotations(annotationNames: List<String>): List<AnnotationTuple> {
     Log.i(
         TAG,
         "============== Looking for methods with annotations: $annotationNames =============="
     )
-    return annotationNames.flatMap { aname ->
-        Log.i(TAG, "Looking for: $aname")
-        getClassesWithMethodAnnotation(aname)
-            .filterNotNull()
-            .flatMap { classInfo ->
-                val className = classInfo.name
-                    ?: internalScannerErrorX("Class with no name?! ($classInfo)")
-
-                (
-                    classInfo.declaredMethodAndConstructorInfo
-                        ?: internalScannerErrorX("Class with no methods?! ($classInfo)")
-                    )
-                    .filterNotNull()
-                    .flatMap { mi ->
-                        val mname = mi.name
-                            ?: internalScannerErrorX("Method with no name?! ($mi)")
-                        mi.annotationInfo.mapNotNull {
-                            AnnotationTuple(it, false, className, mname)
-                        }
-                    }
-                    .filter { it.ai.name == aname }
-                    .also { mi ->
-                        Log.i(TAG, "Pre-expansion annotations: ")
-                        mi.forEach { Log.i(TAG, "===> $it") }
-                    }
-                    .expandValueList()
-                    .also { mi ->
-                        Log.i(TAG, "Post-expansion annotations: ")
-                        mi.forEach { Log.i(TAG, "===> $it") }
-                    }
-            }
-    }
+    return annotationNames
+        .flatMap { getClassesWithMethodAnnotation(it).filterNotNull() }
+        .distinctBy { it.name }
+        .flatMap { classInfo ->
+            val className = classInfo.name
+                ?: internalScannerErrorX("Class with no name?! ($classInfo)")
+
+            (
+                classInfo.declaredMethodAndConstructorInfo
+                    ?: internalScannerErrorX("Class with no methods?! ($classInfo)")
+                )
+                .filterNotNull()
+                .flatMap { mi ->
+                    val mname = mi.name
+                        ?: internalScannerErrorX("Method with no name?! ($mi)")
+                    mi.annotationInfo
+                        .filterNotNull()
+                        .filter { it.name in annotationNames }
+                        .flatMap { it.toTuples(false, className, mname) }
+                }
+                .also { mi ->
+                    Log.i(TAG, "Post-expansion annotations: ")
+                    mi.forEach { Log.i(TAG, "===> $it") }
+                }
+        }
         .also {
             Log.i(TAG, "Total: ${it.size} method annotations found")
             it.checkNoValueGroups()
@@ -512,26 +554,21 @@ private fun ScanResult.methodAnnotations(annotationNames: List<String>): List<An
 /**
  * Given a list of desired annotation names (without the @-symbols), returns a list of [AnnotationTuple]
  * describing every matching annotation found on a Java class (inner or outer) or interface.
+ * As with [methodAnnotations], each class is visited once.
  */
 private fun ScanResult.classAnnotations(annotationNames: List<String>): List<AnnotationTuple> {
     Log.i(TAG, "Looking for classes with annotations: $annotationNames")
-    return annotationNames.flatMap { aname ->
-        getClassesWithAnnotation(aname)
-            .filterNotNull()
-            .flatMap { cinfo ->
-                cinfo.annotationInfo.filterNotNull().map { ai ->
-                    if (cinfo.name != null) {
-                        AnnotationTuple(ai, false, cinfo.name)
-                    } else {
-                        internalScannerErrorX("class without a name?! ($cinfo)")
-                    }
-                }
-            }
-            .filter {
-                it.ai.name == aname
-            }
-            .expandValueList()
-    }
+    return annotationNames
+        .flatMap { getClassesWithAnnotation(it).filterNotNull() }
+        .distinctBy { it.name }
+        .flatMap { cinfo ->
+            val className = cinfo.name
+                ?: internalScannerErrorX("class without a name?! ($cinfo)")
+            cinfo.annotationInfo
+                .filterNotNull()
+                .filter { it.name in annotationNames }
+                .flatMap { it.toTuples(false, className) }
+        }
         .also {
             Log.i(TAG, "Total: ${it.size} class annotations found")
             it.checkNoValueGroups()
@@ -545,6 +582,116 @@ private fun ScanResult.classAnnotations(annotationNames: List<String>): List<Ann
 private fun ScanResult.packageOrClassAnnotations(annotationNames: List<String>) =
     packageAnnotations(annotationNames) + classAnnotations(annotationNames)
 
+/** By default, ClassGraph scans with one thread per processor. */
+val DEFAULT_SCAN_THREADS = Runtime.getRuntime().availableProcessors()
+
+/**
+ * Uses ClassGraph to read all of the RiceChecks annotations in the given code package, along
+ * with the JUnit annotations on test methods, at runtime, using up to [numThreads] threads.
+ * This has to look at every class in the package, so it can be slow for big projects; the
+ * [GradeAnnotationProcessor] can do this work ahead of time, at compile time.
+ */
+internal fun classGraphAnnotations(
+    codePackage: String,
+    numThreads: Int = DEFAULT_SCAN_THREADS
+): List<AnnotationTuple> =
+    ClassGraph()
+//            .verbose() // Log to stderr
+        // We only need annotations on classes, packages, and methods, not fields,
+        // static final values, and everything else that enableAllInfo() would collect.
+        .enableClassInfo()
+        .enableMethodInfo()
+        .enableAnnotationInfo()
+        // JUnit5 test classes and methods are often package-private.
+        .ignoreClassVisibility()
+        .ignoreMethodVisibility()
+        // The code we're grading is never inside a dependency's jar.
+        .disableJarScanning()
+        .whitelistPackages(codePackage) // Scan codePackage and subpackages
+        .scan(maxOf(1, numThreads)).use { scanResult: ScanResult? ->
+            if (scanResult == null) {
+                emptyList()
+            } else {
+                scanResult.packageOrClassAnnotations(
+                    listOf(
+                        A_GRADEPROJECT, A_GRADEPROJECTS, A_GRADECOVERAGE, A_GRADECOVERAGES,
+                        A_GRADETOPIC, A_GRADETOPICS
+                    )
+                ) + scanResult.methodAnnotations(
+                    listOf(A_JUNIT4_TEST, A_JUNIT5_TEST, A_JUNIT5_TESTFACTORY, A_GRADE, A_GRADES)
+                )
+            }
+        }
+
+/** Where the [GradeAnnotationProcessor] writes its index of annotations, one per compilation. */
+const val ANNOTATION_INDEX_RESOURCE = "META-INF/ricechecks/annotations.json"
+
+/** Bump this whenever the format of the annotation index changes. */
+internal const val ANNOTATION_INDEX_FORMAT = 1
+
+/** The contents of an [ANNOTATION_INDEX_RESOURCE]. */
+internal data class AnnotationIndex(
+    val format: Int,
+    val annotations: List<AnnotationTuple>
+)
+
+/**
+ * Reads and merges every annotation index on the classpath, returning all the annotations
+ * within the given code package. If there aren't any, the result is empty, and we'll need
+ * to fall back to [classGraphAnnotations]. Even if there are, some of the package might
+ * not be indexed; see [unindexedClassDirs].
+ */
+internal fun indexedAnnotations(codePackage: String): List<AnnotationTuple> {
+    val loader = Thread.currentThread().contextClassLoader ?: ClassLoader.getSystemClassLoader()
+    return Try { loader.getResources(ANNOTATION_INDEX_RESOURCE).toList() }
+        .getOrElse { emptyList() }
+        .flatMap { url ->
+            Try { url.openStream().use { jacksonJsonMapper.readValue<AnnotationIndex>(it) } }
+                .onFailure { Log.e(TAG, "failed to read annotation index ($url)", it) }
+                .fold(
+                    { emptyList<AnnotationTuple>() },
+                    {
+                        if (it.format == ANNOTATION_INDEX_FORMAT) {
+                            it.annotations
+                        } else {
+                            Log.e(TAG, "ignoring annotation index ($url), format ${it.format}")
+                            emptyList()
+                        }
+                    }
+                )
+        }
+        .filter {
+            it.classOrPackageName == codePackage ||
+                it.classOrPackageName.startsWith("$codePackage.")
+        }
+        // the same classes might be on the classpath twice (e.g., in a directory and a jar)
+        .distinct()
+}
+
+/**
+ * Returns every directory on the classpath that has class files in the given code package,
+ * but no annotation index of its own. Each compilation writes its index to the root of its
+ * own output directory, so a directory without one wasn't compiled with the annotation
+ * processor (or wasn't compiled by javac at all, e.g., Kotlin code), and any annotations in
+ * it are missing from [indexedAnnotations]. Jars are ignored, just as they are by
+ * [classGraphAnnotations].
+ */
+internal fun unindexedClassDirs(codePackage: String): List<Path> {
+    val packagePath = codePackage.replace('.', '/')
+
+    return ClassGraph().classpathFiles
+        .filter { it.isDirectory }
+        .map { it.toPath() }
+        .filter { classpathDir ->
+            val packageDir = classpathDir.resolve(packagePath)
+            Files.isDirectory(packageDir) &&
+                !Files.exists(classpathDir.resolve(ANNOTATION_INDEX_RESOURCE)) &&
+                Files.walk(packageDir).use { stream ->
+                    stream.anyMatch { it.toString().endsWith(".class") }
+                }
+        }
+}
+
 /**
  * We have lists of things that we don't want to have repeats. No repeated project names.
  * No repeated topics within a project. Etc. This method crashes the scanner if it finds repeats.
@@ -568,147 +715,167 @@ private fun List<IGradeCoverage>.toGCoverages(): List<GGradeCoverage> =
 /**
  * Given the name of a code package like "edu.rice", returns a mapping from project names to
  * [GGradeProject] containing everything we know about that project (i.e., its topics,
- * coverage requirements, and specific unit tests).
+ * coverage requirements, and specific unit tests). If the [GradeAnnotationProcessor] wrote
+ * an index of the annotations at compile time, for every directory of classes in the code
+ * package, we use that, unless [useIndex] is false. An index that only covers some of them
+ * (e.g., the test classes are indexed, but some are written in Kotlin) would silently lose
+ * whatever annotations are in the rest, so we don't use it at all.
+ * Otherwise, we have to go find the annotations with ClassGraph, using up to [numThreads]
+ * threads, and if a [scanIndexFile] is given, we save what we found there so the next scan
+ * can be skipped if nothing has been recompiled. Either way, if there's something wrong
+ * with the annotations, this throws an [AnnotationScannerException].
  */
-fun scanEverything(codePackage: String = "edu.rice"): Map<String, GGradeProject> {
+fun scanEverything(
+    codePackage: String = "edu.rice",
+    useIndex: Boolean = true,
+    scanIndexFile: Path? = null,
+    numThreads: Int = DEFAULT_SCAN_THREADS
+): Map<String, GGradeProject> {
     Log.i(TAG, "scanEverything: $codePackage")
 
-    return ClassGraph()
-//            .verbose() // Log to stderr
-        .enableAllInfo() // Scan classes, methods, fields, annotations
-        .whitelistPackages(codePackage) // Scan codePackage and subpackages
-        .scan().use { scanResult: ScanResult? ->
-        if (scanResult == null) {
-            emptyMap()
-        } else {
-            val gradeProjectAnnotations =
-                scanResult.packageOrClassAnnotations(
-                    listOf(A_GRADEPROJECT, A_GRADEPROJECTS)
-                )
-                    .map { it.toIGradeProject() }
-                    .failRepeating("More than one project definition for") {
-                        it.name
-                    }
+    val indexed = if (useIndex) indexedAnnotations(codePackage) else emptyList()
+    val unindexed = if (indexed.isEmpty()) emptyList() else unindexedClassDirs(codePackage)
+    if (unindexed.isNotEmpty()) {
+        Log.i(TAG, "Not using the compile-time index, which is missing: $unindexed")
+    }
 
-//                    Log.i(TAG, "Found ${gradeProjectAnnotations.size} GradeProject annotations:")
-//                    gradeProjectAnnotations.forEach { Log.i(TAG, it) }
+    val annotations = when {
+        indexed.isNotEmpty() && unindexed.isEmpty() -> {
+            Log.i(TAG, "Using ${indexed.size} annotations from the compile-time index")
+            indexed
+        }
+        scanIndexFile != null ->
+            cachedClassGraphAnnotations(codePackage, scanIndexFile, numThreads)
+        else -> classGraphAnnotations(codePackage, numThreads)
+    }
 
-            val projectMap = gradeProjectAnnotations.associateBy { it.name }
+    return annotations.toGradeProjects()
+}
 
-            val gradeCoverageAnnotations =
-                scanResult.packageOrClassAnnotations(
-                    listOf(A_GRADECOVERAGE, A_GRADECOVERAGES)
-                )
-                    .map { it.toIGradeCoverage(projectMap) }
-
-            val testAnnotations =
-                scanResult.methodAnnotations(listOf(A_JUNIT4_TEST, A_JUNIT5_TEST))
-                    .map { it.classOrPackageName + "." + it.methodName }.toSet()
-
-            val testFactoryAnnotations =
-                scanResult.methodAnnotations(listOf(A_JUNIT5_TESTFACTORY))
-                    .map { it.classOrPackageName + "." + it.methodName }.toSet()
-
-            val gradeTestAnnotations =
-                scanResult.methodAnnotations(listOf(A_GRADE, A_GRADES))
-                    .map {
-                        it.toIGradeTest(
-                            projectMap,
-                            testAnnotations, testFactoryAnnotations
-                        )
-                    }
-                    // sort only to make it easier to read when printed for debugging
-                    .sortedWith(
-                        compareBy(
-                            { it.project.name }, { it.topic },
-                            { it.className }, { it.methodName }
-                        )
-                    )
+/**
+ * Given every relevant [AnnotationTuple], however we found them, validates them and assembles
+ * them into a mapping from project names to [GGradeProject].
+ */
+internal fun List<AnnotationTuple>.toGradeProjects(): Map<String, GGradeProject> {
+    // One pass over the annotations to sort them by kind; everything below then works
+    // from maps keyed by project and topic, so the work is linear in the number of
+    // annotations, no matter how many projects and topics there are.
+    val byName = groupBy { it.name }
+    fun named(name: String) = byName[name].orEmpty()
+    fun List<AnnotationTuple>.fullMethodNames() =
+        map { it.classOrPackageName + "." + it.methodName }.toSet()
+
+    val gradeProjectAnnotations =
+        named(A_GRADEPROJECT)
+            .map { it.toIGradeProject() }
+            .failRepeating("More than one project definition for") {
+                it.name
+            }
 
-            val gradeTopicAnnotations =
-                scanResult.packageOrClassAnnotations(
-                    listOf(A_GRADETOPIC, A_GRADETOPICS)
-                )
-                    .map { it.toIGradeTopic(projectMap) }
-                    // sort only to make it easier to read when printed for debugging
-                    .sortedWith(compareBy({ it.project.name }, { it.topic }))
-
-            gradeProjectAnnotations.associateBy({ it.name }) { project ->
-                val topics = gradeTopicAnnotations
-                    .filter { it.project === project }
-                    .failRepeating(
-                        "More than one topic definition in project " +
-                            "${project.name} for"
-                    ) { it.topic }
-
-                val coverages =
-                    gradeCoverageAnnotations.filter { it.project === project }
-
-                val gtopics = topics.map { topic ->
-                    val gtests = gradeTestAnnotations
-                        .filter {
-                            it.topic == topic.topic && it.project == topic.project
-                        }
-                        .failRepeating(
-                            "More than one GradeTest definition on " +
-                                "the same method for project ${project.name} "
-                        ) {
-                            it.className + "." + it.methodName
-                        }
-                    val maxPointsFromTests = gtests
-                        .sumByDouble { if (it.testFactory) it.maxPoints else it.points }
-
-//                            Log.i(TAG, "Project ${project.name}, Topic ${topic.topic}: internal maxPoints ${topic.maxPoints}, external maxPoints ${maxPointsFromTests}")
-                    val actualMaxPoints =
-                        if (topic.maxPoints == 0.0) maxPointsFromTests else topic.maxPoints
-
-                    if (actualMaxPoints == 0.0) {
-                        failScannerX(
-                            "Project ${project.name}, Topic ${topic.topic}: " +
-                                "no maxPoints specified and none on the tests either"
-                        )
-                    }
+//    Log.i(TAG, "Found ${gradeProjectAnnotations.size} GradeProject annotations:")
+//    gradeProjectAnnotations.forEach { Log.i(TAG, it) }
 
-                    GGradeTopic(
-                        topic.topic, actualMaxPoints,
-                        gtests.map {
-                            GGradeTest(
-                                it.points, it.maxPoints, it.className, it.methodName,
-                                it.testFactory
-                            )
-                        }
-                    )
-                }
+    val projectMap = gradeProjectAnnotations.associateBy { it.name }
+
+    val coveragesByProject =
+        named(A_GRADECOVERAGE)
+            .map { it.toIGradeCoverage(projectMap) }
+            // sorted (stably) so the order doesn't depend on where the annotations came from
+            .sortedWith(compareBy({ it.scope }, { it.name }))
+            .groupBy { it.project.name }
 
-                val maxPointsFromTopics = gtopics.sumByDouble { it.maxPoints }
-                val coverageAndWarningPoints =
-                    project.warningPoints + project.coveragePoints
+    val testAnnotations = testAnnotationNames.flatMap { named(it) }.fullMethodNames()
+    val testFactoryAnnotations =
+        testFactoryAnnotationNames.flatMap { named(it) }.fullMethodNames()
 
-                val actualMaxPoints = when (project.maxPoints) {
-                    0.0 -> maxPointsFromTopics + coverageAndWarningPoints
-                    else -> project.maxPoints
+    val testsByProjectAndTopic =
+        named(A_GRADE)
+            .map {
+                it.toIGradeTest(
+                    projectMap,
+                    testAnnotations, testFactoryAnnotations
+                )
+            }
+            // sort only to make it easier to read when printed for debugging
+            .sortedWith(compareBy({ it.className }, { it.methodName }))
+            .groupBy { Pair(it.project.name, it.topic) }
+
+    val topicsByProject =
+        named(A_GRADETOPIC)
+            .map { it.toIGradeTopic(projectMap) }
+            // sort only to make it easier to read when printed for debugging
+            .sortedBy { it.topic }
+            .groupBy { it.project.name }
+
+    return gradeProjectAnnotations.associateBy({ it.name }) { project ->
+        val topics = topicsByProject[project.name].orEmpty()
+            .failRepeating(
+                "More than one topic definition in project " +
+                    "${project.name} for"
+            ) { it.topic }
+
+        val coverages = coveragesByProject[project.name].orEmpty()
+
+        val gtopics = topics.map { topic ->
+            val gtests = testsByProjectAndTopic[Pair(project.name, topic.topic)].orEmpty()
+                .failRepeating(
+                    "More than one GradeTest definition on " +
+                        "the same method for project ${project.name} "
+                ) {
+                    it.className + "." + it.methodName
                 }
+            val maxPointsFromTests = gtests
+                .sumByDouble { if (it.testFactory) it.maxPoints else it.points }
 
-                val coverageMethod =
-                    enumValueOf<GCoverageStyle>(project.coverageStyle)
-                val gcoverage = coverages.toGCoverages()
+//            Log.i(TAG, "Project ${project.name}, Topic ${topic.topic}: internal maxPoints ${topic.maxPoints}, external maxPoints ${maxPointsFromTests}")
+            val actualMaxPoints =
+                if (topic.maxPoints == 0.0) maxPointsFromTests else topic.maxPoints
 
-                if (project.coveragePoints != 0.0 && gcoverage.isEmpty()) {
-                    failScannerX(
-                        "Coverage points specified (${project.coveragePoints})" +
-                            " but no @GradeCoverage annotations found"
+            if (actualMaxPoints == 0.0) {
+                failScannerX(
+                    "Project ${project.name}, Topic ${topic.topic}: " +
+                        "no maxPoints specified and none on the tests either"
+                )
+            }
+
+            GGradeTopic(
+                topic.topic, actualMaxPoints,
+                gtests.map {
+                    GGradeTest(
+                        it.points, it.maxPoints, it.className, it.methodName,
+                        it.testFactory, it.timeoutMillis
                     )
                 }
+            )
+        }
 
-                GGradeProject(
-                    project.name, project.description, actualMaxPoints,
-                    project.warningPoints, project.useCheckStyle,
-                    project.useGoogleJavaFormat, project.useJavacWarnings,
-                    project.coveragePoints, coverageMethod, project.coveragePercentage,
-                    coverages.toGCoverages(), gtopics
-                )
-            }
+        val maxPointsFromTopics = gtopics.sumByDouble { it.maxPoints }
+        val coverageAndWarningPoints =
+            project.warningPoints + project.coveragePoints
+
+        val actualMaxPoints = when (project.maxPoints) {
+            0.0 -> maxPointsFromTopics + coverageAndWarningPoints
+            else -> project.maxPoints
         }
+
+        val coverageMethod =
+            enumValueOf<GCoverageStyle>(project.coverageStyle)
+        val gcoverage = coverages.toGCoverages()
+
+        if (project.coveragePoints != 0.0 && gcoverage.isEmpty()) {
+            failScannerX(
+                "Coverage points specified (${project.coveragePoints})" +
+                    " but no @GradeCoverage annotations found"
+            )
+        }
+
+        GGradeProject(
+            project.name, project.description, actualMaxPoints,
+            project.warningPoints, project.useCheckStyle,
+            project.useGoogleJavaFormat, project.useJavacWarnings,
+            project.coveragePoints, coverageMethod, project.coveragePercentage,
+            coverages.toGCoverages(), gtopics
+        )
     }
 }
 
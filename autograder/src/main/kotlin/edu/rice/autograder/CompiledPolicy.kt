@@ -0,0 +1,153 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import arrow.core.Try
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+
+// The YAML policy file is what humans review and edit, but reading it means starting up
+// SnakeYAML, Jackson, and Kotlin reflection, just to get a few dozen records, on every
+// single grading run. The compiled policy has exactly the same contents in a compact
+// binary form that's read with plain DataInputStream calls, so there's nothing to warm
+// up. It always starts with POLICY_MAGIC, which is how we tell the formats apart.
+
+private const val TAG = "CompiledPolicy"
+
+private val POLICY_MAGIC = "RCPOLICY".toByteArray(Charsets.US_ASCII)
+
+/** Bump this whenever the compiled policy format changes. */
+const val COMPILED_POLICY_FORMAT = 2
+
+/** Returns whether these bytes look like a compiled policy, rather than YAML. */
+fun ByteArray.isCompiledPolicy() =
+    size >= POLICY_MAGIC.size && POLICY_MAGIC.indices.all { this[it] == POLICY_MAGIC[it] }
+
+// DataOutputStream.writeUTF can't handle strings longer than 64KB, and while we don't
+// expect any, a long description shouldn't break anything.
+private fun DataOutputStream.writeString(s: String) {
+    val bytes = s.toByteArray(Charsets.UTF_8)
+    writeInt(bytes.size)
+    write(bytes)
+}
+
+private fun DataInputStream.readString(): String {
+    val bytes = ByteArray(readInt())
+    readFully(bytes)
+    return String(bytes, Charsets.UTF_8)
+}
+
+private inline fun <T> DataOutputStream.writeList(list: List<T>, writer: (T) -> Unit) {
+    writeInt(list.size)
+    list.forEach(writer)
+}
+
+private inline fun <T> DataInputStream.readList(reader: () -> T): List<T> {
+    val size = readInt()
+    if (size < 0) throw IllegalArgumentException("negative list size ($size)")
+    return List(size) { reader() }
+}
+
+/** Converts a [GGradeProject] to the compiled policy format. */
+fun GGradeProject.compilePolicy(): ByteArray {
+    val bos = ByteArrayOutputStream()
+    DataOutputStream(bos).use { out ->
+        out.write(POLICY_MAGIC)
+        out.writeInt(COMPILED_POLICY_FORMAT)
+
+        out.writeString(name)
+        out.writeString(description)
+        out.writeDouble(maxPoints)
+        out.writeDouble(warningPoints)
+        out.writeBoolean(useCheckStyle)
+        out.writeBoolean(useGoogleJavaFormat)
+        out.writeBoolean(useJavacWarnings)
+        out.writeDouble(coveragePoints)
+        out.writeString(coverageStyle.name)
+        out.writeDouble(coveragePercentage)
+
+        out.writeList(coverageAnnotations) {
+            out.writeString(it.scope.name)
+            out.writeBoolean(it.excluded)
+            out.writeString(it.name)
+        }
+
+        out.writeList(topics) { topic ->
+            out.writeString(topic.name)
+            out.writeDouble(topic.maxPoints)
+            out.writeList(topic.tests) {
+                out.writeDouble(it.points)
+                out.writeDouble(it.maxPoints)
+                out.writeString(it.className)
+                out.writeString(it.methodName)
+                out.writeBoolean(it.testFactory)
+                out.writeLong(it.timeoutMillis)
+            }
+        }
+    }
+    return bos.toByteArray()
+}
+
+/**
+ * Given the bytes of a compiled policy, from [compilePolicy], tries to produce the
+ * corresponding [GGradeProject].
+ */
+fun compiledPolicyImporter(input: ByteArray) = Try {
+    if (!input.isCompiledPolicy()) {
+        Log.ethrow(TAG, "not a compiled policy")
+    }
+
+    val body = ByteArrayInputStream(input, POLICY_MAGIC.size, input.size - POLICY_MAGIC.size)
+    DataInputStream(body).use { inp ->
+        val format = inp.readInt()
+        if (format != COMPILED_POLICY_FORMAT) {
+            Log.ethrow(
+                TAG,
+                "compiled policy format $format, expected $COMPILED_POLICY_FORMAT; " +
+                    "please recompile the policy"
+            )
+        }
+
+        GGradeProject(
+            name = inp.readString(),
+            description = inp.readString(),
+            maxPoints = inp.readDouble(),
+            warningPoints = inp.readDouble(),
+            useCheckStyle = inp.readBoolean(),
+            useGoogleJavaFormat = inp.readBoolean(),
+            useJavacWarnings = inp.readBoolean(),
+            coveragePoints = inp.readDouble(),
+            coverageStyle = enumValueOf(inp.readString()),
+            coveragePercentage = inp.readDouble(),
+            coverageAnnotations = inp.readList {
+                GGradeCoverage(
+                    scope = enumValueOf(inp.readString()),
+                    excluded = inp.readBoolean(),
+                    name = inp.readString()
+                )
+            },
+            topics = inp.readList {
+                GGradeTopic(
+                    name = inp.readString(),
+                    maxPoints = inp.readDouble(),
+                    tests = inp.readList {
+                        GGradeTest(
+                            points = inp.readDouble(),
+                            maxPoints = inp.readDouble(),
+                            className = inp.readString(),
+                            methodName = inp.readString(),
+                            testFactory = inp.readBoolean(),
+                            timeoutMillis = inp.readLong()
+                        )
+                    }
+                )
+            }
+        )
+    }
+}
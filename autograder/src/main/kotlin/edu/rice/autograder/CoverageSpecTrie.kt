@@ -0,0 +1,61 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+/**
+ * A prefix trie over the dot-separated segments of the names in a list of
+ * [GGradeCoverage] specs, so that finding the spec that applies to a class takes
+ * time proportional to the length of its name, no matter how many specs there are.
+ *
+ * The precedence rules are the same as they've always been: the most specific
+ * class spec wins, and if there isn't one, then the most specific package spec
+ * wins. This means that an inner "including" annotation overrides an outer
+ * "excluding" annotation, and vice versa. If two specs have the same name and
+ * scope, the later one in the list wins.
+ */
+class CoverageSpecTrie(coverages: List<GGradeCoverage>) {
+    private class Node {
+        val children = HashMap<String, Node>()
+        var packageSpec: GGradeCoverage? = null
+        var classSpec: GGradeCoverage? = null
+    }
+
+    private val root = Node()
+
+    init {
+        coverages.forEach { spec ->
+            val node = spec.name.split('.').fold(root) { node, segment ->
+                node.children.getOrPut(segment) { Node() }
+            }
+            when (spec.scope) {
+                GCoverageScope.PACKAGE -> node.packageSpec = spec
+                GCoverageScope.CLASS -> node.classSpec = spec
+            }
+        }
+    }
+
+    /**
+     * Returns the spec that governs the given class (in human form, e.g.,
+     * `edu.rice.autograder.test.Project3`), if any, in one walk down the trie.
+     */
+    fun matchingSpec(className: String): GGradeCoverage? {
+        var node = root
+        var packageSpec: GGradeCoverage? = null
+        var classSpec: GGradeCoverage? = null
+
+        for (segment in className.split('.')) {
+            node = node.children[segment] ?: break
+            packageSpec = node.packageSpec ?: packageSpec
+            classSpec = node.classSpec ?: classSpec
+        }
+
+        return classSpec ?: packageSpec
+    }
+
+    /** Returns whether the given class is covered by an including, rather than excluding, spec. */
+    fun isIncluded(className: String): Boolean = matchingSpec(className)?.excluded == false
+}
@@ -58,7 +58,9 @@ data class BasicDeduction(
 data class UnitTestDeduction(
     override val description: String,
     override val cost: Double,
-    val testName: String
+    val testName: String,
+    val timedOut: Boolean = false,
+    val notRun: Boolean = false
 ) : Deduction
 
 data class UnitTestFactoryDeduction(
@@ -66,7 +68,9 @@ data class UnitTestFactoryDeduction(
     override val cost: Double,
     val testName: String,
     val numPassed: Int,
-    val numChecked: Int
+    val numChecked: Int,
+    val numTimedOut: Int = 0,
+    val notRun: Boolean = false
 ) : Deduction
 
 data class CodeStyleDeduction(
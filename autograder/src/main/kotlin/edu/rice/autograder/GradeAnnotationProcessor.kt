@@ -0,0 +1,179 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import javax.annotation.processing.AbstractProcessor
+import javax.annotation.processing.RoundEnvironment
+import javax.lang.model.SourceVersion
+import javax.lang.model.element.AnnotationMirror
+import javax.lang.model.element.AnnotationValue
+import javax.lang.model.element.Element
+import javax.lang.model.element.ExecutableElement
+import javax.lang.model.element.PackageElement
+import javax.lang.model.element.TypeElement
+import javax.tools.Diagnostic
+import javax.tools.StandardLocation
+
+private const val TAG = "GradeAnnotationProcessor"
+
+// Scanning every class in a big project with ClassGraph, every time we want to grade it,
+// can take several seconds. Since javac has to look at all of the annotations anyway, this
+// annotation processor collects the ones we care about as the code is compiled, checks
+// everything that can be checked from a single compilation, and writes them out to an
+// index (see ANNOTATION_INDEX_RESOURCE), which scanEverything can read instantly.
+//
+// Gradle compiles the main and test source sets separately, and each compilation gets its
+// own index. A project might have its @GradeProject in main and its @Grade annotations in
+// test, so we can't assemble (or fully validate) the policy until all the indices are
+// merged at runtime. To use the processor, add the RiceChecks library to both the
+// annotationProcessor and testAnnotationProcessor configurations.
+//
+// The index goes at the root of the compilation's output directory, which is how
+// scanEverything knows which class files it covers. If any class files in the code
+// package don't have an index next to them, the index can't be trusted. So, we write
+// one for every compilation, even one without any of our annotations, which is why we
+// ask javac for every annotation type ("*"), and then ignore the ones we don't need.
+
+/**
+ * A javac annotation processor that writes an index of every RiceChecks annotation, and
+ * the JUnit annotations on graded test methods, so they don't need to be scanned for at
+ * runtime. Errors in the annotations that can be found at compile time (e.g., a @Grade
+ * annotation on a method without @Test or @TestFactory) are reported as compiler errors.
+ */
+class GradeAnnotationProcessor : AbstractProcessor() {
+    private val tuples = ArrayList<AnnotationTuple>()
+
+    private val indexedAnnotationTypes: Set<String> =
+        containerAnnotations.keys + containerAnnotations.values +
+            testAnnotationNames + testFactoryAnnotationNames
+
+    override fun getSupportedAnnotationTypes(): Set<String> = setOf("*")
+
+    override fun getSupportedSourceVersion(): SourceVersion = SourceVersion.latestSupported()
+
+    override fun process(annotations: Set<TypeElement>, roundEnv: RoundEnvironment): Boolean {
+        if (roundEnv.processingOver()) {
+            writeIndex()
+        } else {
+            val elements = annotations
+                .filter { it.qualifiedName.toString() in indexedAnnotationTypes }
+                .flatMap { roundEnv.getElementsAnnotatedWith(it) }
+                .distinct()
+
+            elements.forEach { element ->
+                val elementTuples = element.toTuples()
+                elementTuples.forEach { it.check(elementTuples, element) }
+
+                // We only need to know about JUnit annotations on graded methods.
+                val graded = elementTuples.any { it.name == A_GRADE }
+                tuples.addAll(
+                    elementTuples.filter { graded || it.name in containerAnnotations.values }
+                )
+            }
+        }
+
+        // Other processors might also be interested in the JUnit annotations, so we
+        // never claim any annotations for ourselves.
+        return false
+    }
+
+    /** Runs the checks that don't depend on anything outside of this [element]. */
+    private fun AnnotationTuple.check(elementTuples: List<AnnotationTuple>, element: Element) {
+        try {
+            when (name) {
+                A_GRADEPROJECT -> toIGradeProject()
+                A_GRADETOPIC -> checkGradeTopic()
+                A_GRADE -> checkGradeTest(
+                    elementTuples.fullMethodNames(testAnnotationNames),
+                    elementTuples.fullMethodNames(testFactoryAnnotationNames)
+                )
+            }
+        } catch (e: RuntimeException) {
+            processingEnv.messager.printMessage(
+                Diagnostic.Kind.ERROR,
+                "$AutoGraderName: ${e.message}",
+                element
+            )
+        }
+    }
+
+    private fun List<AnnotationTuple>.fullMethodNames(annotationNames: Set<String>) =
+        filter { it.name in annotationNames }
+            .map { "${it.classOrPackageName}.${it.methodName}" }
+            .toSet()
+
+    private fun writeIndex() {
+        Log.i(TAG, "writing ${tuples.size} annotations to $ANNOTATION_INDEX_RESOURCE")
+        processingEnv.filer
+            .createResource(StandardLocation.CLASS_OUTPUT, "", ANNOTATION_INDEX_RESOURCE)
+            .openOutputStream()
+            .use {
+                jacksonJsonMapper.writeValue(it, AnnotationIndex(ANNOTATION_INDEX_FORMAT, tuples))
+            }
+    }
+
+    /** Finds the relevant annotations on this element, in the same form as ClassGraph would. */
+    private fun Element.toTuples(): List<AnnotationTuple> {
+        val elementUtils = processingEnv.elementUtils
+        val (isPackage, classOrPackageName, methodName) = when (this) {
+            is PackageElement -> Triple(true, qualifiedName.toString(), null)
+            is TypeElement -> Triple(false, elementUtils.getBinaryName(this).toString(), null)
+            is ExecutableElement -> {
+                val enclosingType = enclosingElement as? TypeElement ?: return emptyList()
+                Triple(
+                    false,
+                    elementUtils.getBinaryName(enclosingType).toString(),
+                    simpleName.toString()
+                )
+            }
+            else -> return emptyList()
+        }
+
+        return annotationMirrors
+            .flatMap { it.toTuples(isPackage, classOrPackageName, methodName) }
+            .filter { it.name in indexedAnnotationTypes }
+    }
+
+    /**
+     * Converts an annotation to a list of [AnnotationTuple], expanding container annotations
+     * (e.g., "Grades") into the annotations within. Only explicitly given parameters are
+     * included, just like ClassGraph, so the scanner's defaults apply either way.
+     */
+    private fun AnnotationMirror.toTuples(
+        isPackage: Boolean,
+        classOrPackageName: String,
+        methodName: String?
+    ): List<AnnotationTuple> {
+        val annotationName = (annotationType.asElement() as TypeElement).qualifiedName.toString()
+        val params = elementValues.entries
+            .associate { (key, value) -> key.simpleName.toString() to value.value }
+        val value = params["value"]
+
+        return when {
+            annotationName in containerAnnotations && value is List<*> ->
+                value
+                    .mapNotNull { (it as? AnnotationValue)?.value as? AnnotationMirror }
+                    .flatMap { it.toTuples(isPackage, classOrPackageName, methodName) }
+
+            // JUnit's annotations can have parameters that we never look at, some of
+            // which (e.g., class literals) wouldn't fit in the index anyway.
+            annotationName !in containerAnnotations.values ->
+                listOf(
+                    AnnotationTuple(
+                        annotationName, emptyMap(), isPackage, classOrPackageName, methodName
+                    )
+                )
+
+            else ->
+                listOf(
+                    AnnotationTuple(
+                        annotationName, params, isPackage, classOrPackageName, methodName
+                    )
+                )
+        }
+    }
+}
@@ -8,6 +8,8 @@ package edu.rice.autograder
 
 import arrow.core.Try
 import com.fasterxml.jackson.module.kotlin.readValue
+import java.nio.file.Files
+import java.nio.file.Paths
 
 private const val TAG = "YamlExporter"
 
@@ -45,3 +47,17 @@ fun GGradeProject.yamlExporter(suppressDoNotEditLine: Boolean = false) =
 fun yamlImporter(input: String) = Try {
     jacksonYamlMapper.readValue<GGradeProject>(input)
 }
+
+/**
+ * Given the name of a policy file, either YAML (from [yamlExporter]) or compiled (from
+ * [compilePolicy]), figures out which one it is and tries to produce the corresponding
+ * [GGradeProject].
+ */
+fun loadPolicy(fileName: String): Try<GGradeProject> =
+    Try { Files.readAllBytes(Paths.get(fileName)) }.flatMap {
+        if (it.isCompiledPolicy()) {
+            compiledPolicyImporter(it)
+        } else {
+            yamlImporter(String(it, Charsets.UTF_8))
+        }
+    }
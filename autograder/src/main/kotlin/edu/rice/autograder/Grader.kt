@@ -0,0 +1,221 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import java.nio.file.Paths
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.function.Supplier
+
+/** Where reports go when nobody says otherwise, relative to the current working directory. */
+const val DEFAULT_OUTPUT_DIR = "build/autograder"
+
+/**
+ * Everything the grader needs to know about where to find its inputs and where
+ * to put its outputs, and how to go about grading. Every input path is derived from the
+ * [buildDir], following the conventions of our `build.gradle` files, and the [cacheDir]
+ * from the [outputDir], unless it's given explicitly. Only the paths that were given are
+ * remembered, so a [copy] with another build or output directory derives the rest anew.
+ *
+ * A context is immutable, so it can be freely shared across threads, and there is
+ * no global state involved in grading, so any number of gradings with different
+ * contexts can run at the same time.
+ *
+ * @property buildDir the build directory of the project being graded
+ * @property outputDir where the reports are written
+ * @property gradedTestsOnly if set, only the test results files for classes named in the
+ *   policy are read, rather than every file in the [testResultsDirs]
+ * @property coverageFromExec if set, coverage is computed from the [jacocoExecs] and the
+ *   [classesDir], so there's no need to generate the [jacocoReport]
+ * @property useCache if set, the parsed outcome of each artifact is remembered in the
+ *   [cacheDir] (see [ArtifactCache]), so unchanged artifacts aren't parsed again
+ * @property runTests if set, the graded tests are run from the context class loader, and
+ *   their outcomes recorded as they happen, rather than read from XML (see
+ *   [GradingPlan.runTests])
+ * @property failFast if set, along with [runTests], tests whose topics have already lost all
+ *   their points aren't run
+ * @property testWorkers if given, tests are run on one of these, rather than in this JVM
+ */
+class GradingContext(
+    val buildDir: String = "./build",
+    val outputDir: String = DEFAULT_OUTPUT_DIR,
+    val gradedTestsOnly: Boolean = false,
+    val coverageFromExec: Boolean = false,
+    val useCache: Boolean = false,
+    val runTests: Boolean = false,
+    val failFast: Boolean = false,
+    testResultsDirs: List<String>? = null,
+    googleJavaFormatDir: String? = null,
+    checkStyleDir: String? = null,
+    compilerLog: String? = null,
+    jacocoReport: String? = null,
+    jacocoHtmlReport: String? = null,
+    jacocoExecs: List<String>? = null,
+    classesDir: String? = null,
+    testClassesDir: String? = null,
+    cacheDir: String? = null,
+    val testWorkers: TestWorkerPool? = null
+) {
+    private val given = GivenPaths(
+        testResultsDirs, googleJavaFormatDir, checkStyleDir, compilerLog, jacocoReport,
+        jacocoHtmlReport, jacocoExecs, classesDir, testClassesDir, cacheDir
+    )
+
+    /**
+     * The JUnit XML results directories. When the tests were split across several test
+     * tasks (see [planShards]), there's one per task, and they're merged as if one task had
+     * run them all.
+     */
+    val testResultsDirs: List<String>
+        get() = given.testResultsDirs ?: listOf("$buildDir/test-results/test")
+
+    /** Where google-java-format's verify task keeps its state. */
+    val googleJavaFormatDir: String
+        get() = given.googleJavaFormatDir ?: "$buildDir/google-java-format/"
+
+    /** Where CheckStyle writes its reports; see [checkStyleReport]. */
+    val checkStyleDir: String
+        get() = given.checkStyleDir ?: "$buildDir/reports/checkstyle"
+
+    /** The Java compiler's log. */
+    val compilerLog: String
+        get() = given.compilerLog ?: "$buildDir/logs/compile.log"
+
+    /** JaCoCo's XML report. */
+    val jacocoReport: String
+        get() = given.jacocoReport ?: "$buildDir/reports/jacoco/test/jacocoTestReport.xml"
+
+    /** JaCoCo's HTML report, which the grade report points to. */
+    val jacocoHtmlReport: String
+        get() = given.jacocoHtmlReport ?: "$buildDir/reports/jacoco/index.html"
+
+    /** JaCoCo's execution data, one file per test task, like the [testResultsDirs]. */
+    val jacocoExecs: List<String>
+        get() = given.jacocoExecs ?: listOf("$buildDir/jacoco/test.exec")
+
+    /** The compiled classes of the project. */
+    val classesDir: String
+        get() = given.classesDir ?: "$buildDir/classes/java/main"
+
+    /** The compiled test classes of the project. */
+    val testClassesDir: String
+        get() = given.testClassesDir ?: "$buildDir/classes/java/test"
+
+    /** Where the [artifactCache] is kept. */
+    val cacheDir: String
+        get() = given.cacheDir ?: "$outputDir/cache"
+
+    /** The cache of parsed artifacts, opened on first use, if [useCache] is set. */
+    val artifactCache: ArtifactCache? by lazy {
+        if (useCache) ArtifactCache.open(Paths.get(cacheDir)) else null
+    }
+
+    /** CheckStyle writes one report per source set, which we call a module (e.g., "main"). */
+    fun checkStyleReport(moduleName: String) = "$checkStyleDir/$moduleName.xml"
+
+    /**
+     * Returns a new context, with the given changes. Any path that wasn't given, here or
+     * when this context was made, is derived from the new context's [buildDir] or
+     * [outputDir], just like the constructor does.
+     */
+    fun copy(
+        buildDir: String = this.buildDir,
+        outputDir: String = this.outputDir,
+        gradedTestsOnly: Boolean = this.gradedTestsOnly,
+        coverageFromExec: Boolean = this.coverageFromExec,
+        useCache: Boolean = this.useCache,
+        runTests: Boolean = this.runTests,
+        failFast: Boolean = this.failFast,
+        testResultsDirs: List<String>? = given.testResultsDirs,
+        googleJavaFormatDir: String? = given.googleJavaFormatDir,
+        checkStyleDir: String? = given.checkStyleDir,
+        compilerLog: String? = given.compilerLog,
+        jacocoReport: String? = given.jacocoReport,
+        jacocoHtmlReport: String? = given.jacocoHtmlReport,
+        jacocoExecs: List<String>? = given.jacocoExecs,
+        classesDir: String? = given.classesDir,
+        testClassesDir: String? = given.testClassesDir,
+        cacheDir: String? = given.cacheDir,
+        testWorkers: TestWorkerPool? = this.testWorkers
+    ) = GradingContext(
+        buildDir, outputDir, gradedTestsOnly, coverageFromExec, useCache, runTests, failFast,
+        testResultsDirs, googleJavaFormatDir, checkStyleDir, compilerLog, jacocoReport,
+        jacocoHtmlReport, jacocoExecs, classesDir, testClassesDir, cacheDir, testWorkers
+    )
+
+    private fun fields() = listOf(
+        buildDir, outputDir, gradedTestsOnly, coverageFromExec, useCache, runTests, failFast,
+        given, testWorkers
+    )
+
+    override fun equals(other: Any?) = other is GradingContext && fields() == other.fields()
+
+    override fun hashCode() = fields().hashCode()
+
+    override fun toString() = "GradingContext(buildDir=$buildDir, outputDir=$outputDir)"
+}
+
+/** The paths a [GradingContext] was given, rather than derived; see [GradingContext.copy]. */
+private data class GivenPaths(
+    val testResultsDirs: List<String>?,
+    val googleJavaFormatDir: String?,
+    val checkStyleDir: String?,
+    val compilerLog: String?,
+    val jacocoReport: String?,
+    val jacocoHtmlReport: String?,
+    val jacocoExecs: List<String>?,
+    val classesDir: String?,
+    val testClassesDir: String?,
+    val cacheDir: String?
+)
+
+/**
+ * Library entry point for grading, suitable for embedding in other tools. Unlike
+ * [AutoGrader], which is a command-line front end that takes its configuration
+ * from command-line arguments, a Grader carries all of its state in its
+ * [GradingContext], so you can create as many of these as you like and use them
+ * concurrently.
+ *
+ * ```
+ * val report = Grader("submissions/alice/build", "reports/alice").grade(policy)
+ * ```
+ */
+class Grader(val context: GradingContext) {
+    constructor(buildDir: String, outputDir: String, gradedTestsOnly: Boolean = false) :
+        this(GradingContext(buildDir, outputDir, gradedTestsOnly = gradedTestsOnly))
+
+    /** Grades the build directory against the given policy. */
+    fun grade(policy: GGradeProject): ResultsReport = policy.toResultsReport(context)
+
+    /**
+     * Grades the build directory against the plan's policy. When grading many build
+     * directories against one policy, make the [GradingPlan] once and use it for all of them.
+     */
+    fun grade(plan: GradingPlan): ResultsReport = plan.toResultsReport(context)
+
+    /**
+     * Grades the build directory against every one of the given policies, returning the
+     * reports in the same order. Each artifact is only read once, no matter how many
+     * policies there are; see [GradingContext.gradeAll].
+     */
+    fun gradeAll(policies: List<GGradeProject>): List<ResultsReport> =
+        context.gradeAll(policies.map { GradingPlan(it) })
+
+    /**
+     * Grades the build directory against the given policy, running on the given [executor]
+     * (by default, the same threads that read the build artifacts; see [ingestAsync]).
+     */
+    fun gradeAsync(
+        policy: GGradeProject,
+        executor: Executor = ingestExecutor
+    ): CompletableFuture<ResultsReport> =
+        CompletableFuture.supplyAsync(Supplier { grade(policy) }, executor)
+
+    /** Writes the report to this grader's output directory; see [ResultsReport.writeReports]. */
+    fun writeReports(report: ResultsReport, quiet: Boolean = true) =
+        report.writeReports(quiet, context.outputDir)
+}
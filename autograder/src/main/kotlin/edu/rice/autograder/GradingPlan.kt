@@ -0,0 +1,281 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import java.util.BitSet
+import kotlin.math.max
+import kotlin.math.min
+
+// When one policy is applied to hundreds of submissions, everything that only depends
+// on the policy (the names of the graded tests, which topic each one belongs to, the
+// coverage specs, etc.) would otherwise be worked out all over again for every single
+// submission. A GradingPlan does that work once. Each distinct graded test gets a dense
+// integer ID, each submission's test results are boiled down to a few bitsets and
+// counters indexed by those IDs, and scoring is then a simple loop over arrays.
+
+/**
+ * Everything about a [GGradeProject] that we need for scoring, computed once so it can
+ * be shared by every submission (and every thread) graded against the same policy.
+ * A GradingPlan is immutable once constructed.
+ */
+class GradingPlan(val project: GGradeProject) {
+    // Distinct graded tests, by class name and then method name, mapped to their IDs.
+    // The same test method might be graded in more than one topic, so an ID can be
+    // shared by more than one entry, below.
+    private val testIds: Map<String, Map<String, Int>>
+
+    /** The number of distinct graded tests, which are numbered from 0 to numTests-1. */
+    val numTests: Int
+
+    // One "entry" per graded test in the policy, in policy order, with the entries for
+    // topic t running from topicOffsets[t] up to (but not including) topicOffsets[t+1].
+    private val entryTestIds: IntArray
+    private val entryNames: Array<String>
+    private val entryPoints: DoubleArray
+    private val entryMaxPoints: DoubleArray
+    private val entryIsFactory: BooleanArray
+    private val topicOffsets: IntArray
+
+    /** The coverage specs, ready for matching class names (see [CoverageSpecTrie]). */
+    val coverageSpecs = CoverageSpecTrie(project.coverageAnnotations)
+
+    /** The names of every test class with graded tests, sorted and without duplicates. */
+    val gradedClassNames: List<String>
+
+    // The class and method name of each distinct graded test, by ID.
+    internal val testNames: List<Pair<String, String>>
+
+    // The timeout of each distinct graded test, by ID, or zero if it has none. If a test
+    // is graded more than once, with different timeouts, the shortest one wins.
+    private val testTimeouts: LongArray
+
+    /** Whether any graded test has a timeout (see [timeoutMillis]). */
+    val hasTimeouts: Boolean
+
+    init {
+        val entries = project.topics.flatMap { it.tests }
+        val ids = HashMap<String, HashMap<String, Int>>()
+        var nextId = 0
+
+        entryTestIds = entries
+            .map { test ->
+                ids.getOrPut(test.className) { HashMap() }
+                    .getOrPut(test.methodName) { nextId++ }
+            }
+            .toIntArray()
+        entryNames = entries.map { "${it.className}.${it.methodName}" }.toTypedArray()
+        entryPoints = entries.map { it.points }.toDoubleArray()
+        entryMaxPoints = entries.map { it.maxPoints }.toDoubleArray()
+        entryIsFactory = entries.map { it.testFactory }.toBooleanArray()
+        topicOffsets = IntArray(project.topics.size + 1)
+        project.topics.forEachIndexed { topicNum, topic ->
+            topicOffsets[topicNum + 1] = topicOffsets[topicNum] + topic.tests.size
+        }
+
+        testIds = ids
+        numTests = nextId
+        gradedClassNames = ids.keys.sorted()
+
+        val names = arrayOfNulls<Pair<String, String>>(numTests)
+        ids.forEach { (className, methods) ->
+            methods.forEach { (methodName, id) -> names[id] = Pair(className, methodName) }
+        }
+        testNames = names.map { it ?: throw IllegalStateException("test IDs aren't dense") }
+
+        testTimeouts = LongArray(numTests)
+        entries.forEachIndexed { entry, test ->
+            val id = entryTestIds[entry]
+            if (test.timeoutMillis > 0 &&
+                (testTimeouts[id] == 0L || test.timeoutMillis < testTimeouts[id])
+            ) {
+                testTimeouts[id] = test.timeoutMillis
+            }
+        }
+        hasTimeouts = testTimeouts.any { it > 0 }
+    }
+
+    /**
+     * One test filter pattern (`className.methodName`) per distinct graded test, sorted,
+     * suitable for Gradle's `--tests` option or `filter.includeTestsMatching`, so the test
+     * task can skip every test that doesn't count for anything. A TestFactory's pattern
+     * selects the factory method, which then generates all of its tests.
+     */
+    val testFilterPatterns: List<String>
+        get() = testIds.flatMap { (className, methods) ->
+            methods.keys.map { "$className.$it" }
+        }.sorted()
+
+    /** Returns the ID of the given graded test, or -1 if it isn't graded. */
+    fun testId(className: String?, methodName: String?): Int =
+        if (className == null || methodName == null) -1
+        else testIds[className]?.get(methodName) ?: -1
+
+    /**
+     * Returns the timeout, in milliseconds, of the given graded test (for a TestFactory, of
+     * each of its tests), or zero if it has none or isn't graded.
+     */
+    fun timeoutMillis(className: String, methodName: String): Long {
+        val id = testId(className, methodName)
+        return if (id < 0) 0L else testTimeouts[id]
+    }
+
+    /** The timeout of every graded test that has one, by `className.methodName`. */
+    val testTimeoutsByName: Map<String, Long>
+        get() = testNames
+            .associate { (className, methodName) ->
+                Pair("$className.$methodName", timeoutMillis(className, methodName))
+            }
+            .filterValues { it > 0 }
+
+    /**
+     * Boils down the test cases in the given suites to a [TestOutcomes], in one pass,
+     * ignoring every test case that isn't graded.
+     */
+    fun outcomes(suites: List<JUnitSuite>): TestOutcomes {
+        val outcomes = TestOutcomes(numTests)
+        suites.forEach { suite ->
+            suite.tests?.forEach {
+                val id = testId(it.className, it.methodName?.normalizedMethodName() ?: "")
+                if (id >= 0) outcomes.record(id, 1, if (it.failure == null) 0 else 1)
+            }
+        }
+        return outcomes
+    }
+
+    /** Like [outcomes], but from the per-method counts in an [OutcomeSnapshot]. */
+    fun outcomesFromCounts(counts: List<TestCaseCounts>): TestOutcomes {
+        val outcomes = TestOutcomes(numTests)
+        counts.forEach {
+            val id = testId(it.className, it.methodName)
+            if (id >= 0) outcomes.record(id, it.numRun, it.numFailed, it.numTimedOut)
+        }
+        return outcomes
+    }
+
+    // The deduction for one entry, given the outcome of its test.
+    private fun entryDeduction(entry: Int, outcomes: TestOutcomes): Deduction {
+        val id = entryTestIds[entry]
+        val name = entryNames[entry]
+        val points = entryPoints[entry]
+        val maxPoints = entryMaxPoints[entry]
+        val numRun = outcomes.runCounts[id]
+        val numFailing = outcomes.failCounts[id]
+
+        return when {
+            entryIsFactory[entry] && outcomes.notRun[id] ->
+                UnitTestFactoryDeduction(
+                    "$name: not run, topic exhausted", maxPoints, name, 0, 0, notRun = true
+                )
+
+            outcomes.notRun[id] ->
+                UnitTestDeduction("$name: not run, topic exhausted", points, name, notRun = true)
+
+            entryIsFactory[entry] && !outcomes.ran[id] ->
+                UnitTestFactoryDeduction("$name: missing", maxPoints, name, 0, 0)
+
+            !outcomes.ran[id] -> UnitTestDeduction("$name: missing", points, name)
+
+            entryIsFactory[entry] -> {
+                val numPassing = numRun - numFailing
+                val numTimedOut = outcomes.timeoutCounts[id]
+                val timedOutString =
+                    if (numTimedOut == 0) "" else ", $numTimedOut timed out"
+                UnitTestFactoryDeduction(
+                    "$name:\n$numPassing of $numRun passing$timedOutString (-%.1f / fail)"
+                        .format(points),
+                    min(numFailing * points, maxPoints), name, numPassing, numRun,
+                    numTimedOut
+                )
+            }
+
+            outcomes.timedOut[id] ->
+                UnitTestDeduction("$name: timed out", points, name, true)
+
+            outcomes.failed[id] -> UnitTestDeduction("$name: failed", points, name)
+
+            else -> UnitTestDeduction("$name: passed", 0.0, name)
+        }
+    }
+
+    /**
+     * Whether every topic that grades the given test has already lost all of its points,
+     * counting only the tests that have run so far, in which case running the test can't
+     * change the score (see [TestOutcomes.skip]).
+     */
+    internal fun isExhausted(id: Int, outcomes: TestOutcomes): Boolean =
+        project.topics.indices.all { topicNum ->
+            val entries = topicOffsets[topicNum] until topicOffsets[topicNum + 1]
+            if (entries.none { entryTestIds[it] == id }) {
+                true
+            } else {
+                val deducted = entries
+                    .filter { outcomes.ran[entryTestIds[it]] }
+                    .sumByDouble { entryDeduction(it, outcomes).cost }
+                deducted > 0.0 && deducted >= project.topics[topicNum].maxPoints
+            }
+        }
+
+    /**
+     * Returns a list of [EvaluatorResult] -- one per [GGradeTopic] in the policy --
+     * scoring the given outcomes.
+     */
+    fun eval(outcomes: TestOutcomes): List<EvaluatorResult> =
+        project.topics.mapIndexed { topicNum, topic ->
+            val start = topicOffsets[topicNum]
+            val end = topicOffsets[topicNum + 1]
+            val topicResults = ArrayList<Deduction>(end - start)
+            var totalCost = 0.0
+            var numPassingTests = 0
+
+            for (entry in start until end) {
+                val deduction = entryDeduction(entry, outcomes)
+                topicResults.add(deduction)
+                totalCost += deduction.cost
+                if (deduction.cost == 0.0) numPassingTests++
+            }
+
+            val topicDeductions = min(totalCost, topic.maxPoints)
+            val topicString =
+                "${topic.name}: $numPassingTests of ${topicResults.size} tests passed"
+
+            EvaluatorResult(
+                topicDeductions == 0.0, max(topic.maxPoints - topicDeductions, 0.0),
+                topic.maxPoints, topicString, TESTS_CATEGORY, topicResults
+            )
+        }
+}
+
+/**
+ * What happened to each graded test of a [GradingPlan] in one submission, indexed by
+ * test ID: whether it ran at all, whether any run of it failed (or timed out, which
+ * also counts as failing), and how many times it ran, failed, and timed out (which only
+ * matters for test factories). In fail-fast mode, a test might not have been run at all,
+ * because its topic had already lost all its points. Use [GradingPlan.outcomes] to get one.
+ */
+class TestOutcomes internal constructor(numTests: Int) {
+    internal val ran = BitSet(numTests)
+    internal val failed = BitSet(numTests)
+    internal val timedOut = BitSet(numTests)
+    internal val notRun = BitSet(numTests)
+    internal val runCounts = IntArray(numTests)
+    internal val failCounts = IntArray(numTests)
+    internal val timeoutCounts = IntArray(numTests)
+
+    internal fun record(id: Int, numRun: Int, numFailed: Int, numTimedOut: Int = 0) {
+        if (numRun > 0) ran.set(id)
+        if (numFailed > 0) failed.set(id)
+        if (numTimedOut > 0) timedOut.set(id)
+        runCounts[id] += numRun
+        failCounts[id] += numFailed
+        timeoutCounts[id] += numTimedOut
+    }
+
+    /** Records that the test was deliberately not run; see [GradingPlan.isExhausted]. */
+    internal fun skip(id: Int) {
+        notRun.set(id)
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import arrow.core.Try
+import arrow.core.getOrElse
+import java.nio.file.Files
+import java.nio.file.Paths
+import org.junit.platform.engine.DiscoverySelector
+import org.junit.platform.engine.TestExecutionResult
+import org.junit.platform.engine.discovery.DiscoverySelectors
+import org.junit.platform.engine.support.descriptor.MethodSource
+import org.junit.platform.launcher.LauncherDiscoveryRequest
+import org.junit.platform.launcher.TestExecutionListener
+import org.junit.platform.launcher.TestIdentifier
+import org.junit.platform.launcher.TestPlan
+import org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder
+import org.junit.platform.launcher.core.LauncherFactory
+
+private const val TAG = "JUnitLauncher"
+
+// Normally, Gradle runs the tests and writes a TEST-*.xml file for each test class, which
+// we then read back in and parse, only to learn which test methods passed and failed. When
+// the tests are on our own classpath, we can skip all of that: we run them ourselves, with
+// the JUnit Platform launcher, and a listener records each outcome as it happens, straight
+// into a TestOutcomes, exactly as if we'd read it from the XML. The tests of a TestFactory
+// are credited to the factory method, just like the "testSuite()[n]" entries in the XML.
+// Skipped and aborted tests count as having run without failing, which is how Gradle
+// reports them.
+//
+// Running the tests ourselves also lets us enforce the policy's per-test timeouts, which
+// the version of JUnit we support has no way of doing on its own. When any test has a
+// timeout, the launcher runs on a thread of its own while the calling thread keeps watch.
+// A test that runs past its deadline is recorded as a failure, right away, and then its
+// thread is interrupted. If it still hasn't finished a little while later (say, it's in
+// an infinite loop that never checks for interrupts), there's no safe way to stop it. In a
+// TestWorker, whose JVM is thrown away afterward, we abandon that thread, still running,
+// and run the tests it never got to on a new one. Anywhere else, abandoning it would leave
+// it running in the grader for good, so we fail the whole run instead.
+
+/** Given a test's class and method name, its timeout in milliseconds, or zero for none. */
+typealias TestTimeouts = (className: String, methodName: String) -> Long
+
+/** No test has a timeout. */
+val NO_TIMEOUTS: TestTimeouts = { _, _ -> 0L }
+
+/** Looks up timeouts by `className.methodName`, as in [GradingPlan.testTimeoutsByName]. */
+fun Map<String, Long>.toTestTimeouts(): TestTimeouts =
+    if (isEmpty()) NO_TIMEOUTS
+    else { className, methodName -> this["$className.$methodName"] ?: 0L }
+
+/** How often the watchdog checks for tests that have run past their deadlines. */
+private const val WATCHDOG_POLL_MILLIS = 10L
+
+/** How long an interrupted test gets to finish before we give up on its thread. */
+private const val TIMEOUT_GRACE_MILLIS = 1000L
+
+/**
+ * Whether a test that ignores being interrupted, once past its timeout, may be abandoned
+ * while it's still running. Only a [TestWorker] allows this, since its JVM is replaced
+ * afterward; anywhere else, such a test is an error.
+ */
+@Volatile
+internal var abandonStuckTests = false
+
+// A test with a timeout, which started running on the given thread.
+private class RunningTest(val source: MethodSource, val deadline: Long, val thread: Thread)
+
+// What we do with each outcome, as described in OutcomeListener.
+private typealias OutcomeRecorder =
+    (className: String, methodName: String, failed: Boolean, timedOut: Boolean) -> Unit
+
+/**
+ * Listens to the launcher, calling [record] for every test that finishes, with the class
+ * and method name of the test or of the TestFactory that made it, whether it failed, and
+ * whether it did so by running past its timeout (see [checkDeadlines]). A TestFactory that
+ * fails on its own is recorded as a failure as well.
+ */
+private class OutcomeListener(
+    private val timeouts: TestTimeouts,
+    private val record: OutcomeRecorder
+) : TestExecutionListener {
+    private var testPlan: TestPlan? = null
+
+    // Everything below is guarded by this, since the watchdog is on another thread, and
+    // tests might run concurrently, if the student turned on JUnit's parallel mode.
+    private val running = HashMap<String, RunningTest>()
+    private val timedOut = HashMap<String, MethodSource>()
+    private var abandoned = false
+
+    // The class and method name of every test method in the plan, and of those that started.
+    private val planned = LinkedHashSet<Pair<String, String>>()
+    private val started = HashSet<Pair<String, String>>()
+
+    override fun testPlanExecutionStarted(testPlan: TestPlan) {
+        this.testPlan = testPlan
+        // The plan grows as dynamic tests are registered, so we copy what we need now.
+        val sources = testPlan.roots
+            .flatMap { testPlan.getDescendants(it) }
+            .mapNotNull { it.source.orElse(null) as? MethodSource }
+        synchronized(this) { sources.forEach { planned.add(Pair(it.className, it.methodName)) } }
+    }
+
+    // The nearest test method, which for a dynamic test is the factory that made it.
+    private fun methodSource(id: TestIdentifier): MethodSource? {
+        var current: TestIdentifier? = id
+        while (current != null) {
+            val source = current.source.orElse(null)
+            if (source is MethodSource) return source
+            current = testPlan?.getParent(current)?.orElse(null)
+        }
+        return null
+    }
+
+    private fun recordSource(id: TestIdentifier, failed: Boolean) {
+        val source = methodSource(id) ?: return
+        synchronized(this) {
+            // A test we've already recorded as timed out, finally giving up, doesn't
+            // count again, and nothing counts once we've abandoned the whole run.
+            if (!abandoned && timedOut.remove(id.uniqueId) == null) {
+                record(source.className, source.methodName, failed, false)
+            }
+        }
+    }
+
+    override fun executionStarted(id: TestIdentifier) {
+        val source = methodSource(id) ?: return
+        synchronized(this) { started.add(Pair(source.className, source.methodName)) }
+        if (!id.isTest) return
+        val timeout = timeouts(source.className, source.methodName)
+        if (timeout > 0) {
+            // An interrupt meant for a test that just barely finished in time mustn't
+            // be left over for this one.
+            Thread.interrupted()
+            val deadline = System.nanoTime() + timeout * 1_000_000
+            synchronized(this) {
+                running[id.uniqueId] = RunningTest(source, deadline, Thread.currentThread())
+            }
+        }
+    }
+
+    override fun executionSkipped(id: TestIdentifier, reason: String?) {
+        methodSource(id)?.let {
+            synchronized(this) { started.add(Pair(it.className, it.methodName)) }
+        }
+        if (id.isTest) recordSource(id, false)
+    }
+
+    override fun executionFinished(id: TestIdentifier, result: TestExecutionResult) {
+        synchronized(this) { running.remove(id.uniqueId) }
+        val failed = result.status == TestExecutionResult.Status.FAILED
+        if (id.isTest || (failed && id.source.orElse(null) is MethodSource)) {
+            recordSource(id, failed)
+        }
+    }
+
+    /**
+     * Records every running test that's past its deadline as a timed-out failure, and
+     * interrupts it.
+     */
+    @Synchronized
+    fun checkDeadlines(now: Long) {
+        running.filterValues { it.deadline - now <= 0 }.forEach { (uniqueId, test) ->
+            running.remove(uniqueId)
+            timedOut[uniqueId] = test.source
+            Log.i(TAG, "Timed out: ${test.source.className}.${test.source.methodName}")
+            record(test.source.className, test.source.methodName, true, true)
+            test.thread.interrupt()
+        }
+    }
+
+    /** Whether any test that timed out has yet to finish. */
+    @Synchronized
+    fun hasStuckTests() = timedOut.isNotEmpty()
+
+    /** The names of the tests that timed out and have yet to finish. */
+    @Synchronized
+    fun stuckTests() = timedOut.values.map { "${it.className}.${it.methodName}" }.distinct()
+
+    /**
+     * Ignores everything from here on, since we've given up on the launcher's thread, and
+     * returns the class and method names of the planned test methods that never started.
+     */
+    @Synchronized
+    fun abandon(): List<Pair<String, String>> {
+        abandoned = true
+        return planned.filter { it !in started }
+    }
+}
+
+/** Loads the test class from the context class loader, or logs and returns null. */
+private fun loadTestClass(className: String): Class<*>? {
+    val loader = Thread.currentThread().contextClassLoader ?: ClassLoader.getSystemClassLoader()
+    return Try { Class.forName(className, false, loader) }
+        .onFailure { Log.i(TAG, "Missing test class: $className") }
+        .getOrElse { null }
+}
+
+/** Returns whichever of the given test classes can be loaded from the context class loader. */
+internal fun loadableTestClasses(classNames: List<String>): List<String> =
+    classNames.filter { loadTestClass(it) != null }
+
+/**
+ * Returns launcher selectors for whichever of the given test classes can be loaded from the
+ * context class loader; the rest are logged and left out, so their tests are missing.
+ */
+private fun classSelectors(classNames: List<String>): List<DiscoverySelector> =
+    classNames.mapNotNull { loadTestClass(it)?.let { DiscoverySelectors.selectClass(it) } }
+
+/**
+ * Returns launcher selectors for the given test method (every overload of it, since the
+ * policy only has its name), or nothing if its class can't be loaded, as with
+ * [classSelectors].
+ */
+private fun methodSelectors(className: String, methodName: String): List<DiscoverySelector> {
+    val testClass = loadTestClass(className) ?: return emptyList()
+    return generateSequence<Class<*>>(testClass) { it.superclass }
+        .flatMap { it.declaredMethods.asSequence() }
+        .filter { it.name == methodName }
+        .distinctBy { it.parameterTypes.toList() }
+        .map { DiscoverySelectors.selectMethod(testClass, it) }
+        .toList()
+}
+
+/**
+ * Runs the request on a new thread, with the calling thread as its watchdog (see
+ * [OutcomeListener.checkDeadlines]), returning once the request is done, or abandoned
+ * because a test ignored its timeout. In that case, which only [abandonStuckTests] allows,
+ * we return the class and method names of the tests that never started; otherwise, none.
+ */
+private fun executeWithWatchdog(
+    request: LauncherDiscoveryRequest,
+    listener: OutcomeListener
+): List<Pair<String, String>> {
+    val loader = Thread.currentThread().contextClassLoader
+    var failure: Throwable? = null
+    val runner = Thread({
+        Try {
+            withContextClassLoader(loader) { LauncherFactory.create().execute(request, listener) }
+        }.onFailure { failure = it }
+    }, "$TAG-runner")
+    runner.isDaemon = true
+    runner.start()
+
+    var stuckSince = 0L
+    while (true) {
+        runner.join(WATCHDOG_POLL_MILLIS)
+        if (!runner.isAlive) break
+
+        val now = System.nanoTime()
+        listener.checkDeadlines(now)
+        when {
+            !listener.hasStuckTests() -> stuckSince = 0L
+            stuckSince == 0L -> stuckSince = now
+            now - stuckSince > TIMEOUT_GRACE_MILLIS * 1_000_000 -> {
+                val stuck = listener.stuckTests().joinToString()
+                val notStarted = listener.abandon()
+                check(abandonStuckTests) {
+                    "Test ignored being interrupted after its timeout: $stuck " +
+                        "(only test workers can contain it)"
+                }
+                Log.e(TAG, "Abandoning a test that ignored being interrupted: $stuck")
+                return notStarted
+            }
+        }
+    }
+
+    failure?.let { throw it }
+    return emptyList()
+}
+
+/**
+ * Runs the tests selected by [selectors] in this JVM, calling [record] for each one (see
+ * [OutcomeListener]) and enforcing the given [timeouts]. Returns false if there was nothing
+ * to run.
+ */
+private fun runJUnit(
+    selectors: List<DiscoverySelector>,
+    timeouts: TestTimeouts,
+    record: OutcomeRecorder
+): Boolean {
+    if (selectors.isEmpty()) return false
+
+    if (timeouts === NO_TIMEOUTS) {
+        val request = LauncherDiscoveryRequestBuilder.request().selectors(selectors).build()
+        LauncherFactory.create().execute(request, OutcomeListener(timeouts, record))
+    } else {
+        // One class at a time, and if a stuck test is abandoned, the tests it never got to
+        // run on a new thread, so only the stuck test itself is lost.
+        selectors.forEach { selector ->
+            var next = listOf(selector)
+            while (next.isNotEmpty()) {
+                val request = LauncherDiscoveryRequestBuilder.request().selectors(next).build()
+                next = executeWithWatchdog(request, OutcomeListener(timeouts, record))
+                    .flatMap { (className, methodName) -> methodSelectors(className, methodName) }
+            }
+        }
+    }
+    return true
+}
+
+/**
+ * Runs every test class named by the plan in this JVM, returning the outcomes of the graded
+ * tests, or null if none of those classes could be found (see [GradingPlan.unitTestResults]).
+ * The test classes must be on the context class loader's classpath.
+ *
+ * With [failFast], we instead run the graded test methods one at a time, in policy order,
+ * so topic by topic, and once every topic that grades a test has lost all of its points, we
+ * don't bother running that test, since it can't change the score (see
+ * [GradingPlan.isExhausted]). It's reported as not run, and ungraded tests never run at all.
+ */
+fun GradingPlan.runTests(failFast: Boolean = false): TestOutcomes? {
+    val outcomes = TestOutcomes(numTests)
+    val timeouts = if (hasTimeouts) this::timeoutMillis else NO_TIMEOUTS
+    val recorder: OutcomeRecorder = { className, methodName, failed, timedOut ->
+        val id = testId(className, methodName)
+        if (id >= 0) outcomes.record(id, 1, if (failed) 1 else 0, if (timedOut) 1 else 0)
+    }
+
+    if (!failFast) {
+        val ran = runJUnit(classSelectors(gradedClassNames), timeouts, recorder)
+        return if (ran) outcomes else null
+    }
+
+    // Test IDs are handed out in policy order, so this goes topic by topic.
+    var foundAny = false
+    for (id in 0 until numTests) {
+        val (className, methodName) = testNames[id]
+        val selectors = methodSelectors(className, methodName)
+        when {
+            selectors.isEmpty() -> {}
+
+            isExhausted(id, outcomes) -> {
+                Log.i(TAG, "Topic exhausted, not running: $className.$methodName")
+                foundAny = true
+                outcomes.skip(id)
+            }
+
+            else -> foundAny = runJUnit(selectors, timeouts, recorder) || foundAny
+        }
+    }
+    return if (foundAny) outcomes else null
+}
+
+/**
+ * Runs the given test classes in this JVM, or every test class in the context's
+ * [GradingContext.testClassesDir] if [classNames] is null, and returns the outcome of every
+ * test method, just as [toTestCaseCounts] would from the XML results, or null if there
+ * weren't any tests to run. Tests that run past their [timeouts] are recorded as failed;
+ * one that won't stop fails the run with an [IllegalStateException], unless
+ * [abandonStuckTests] lets us leave it behind.
+ */
+fun GradingContext.runTestCaseCounts(
+    classNames: List<String>?,
+    timeouts: TestTimeouts = NO_TIMEOUTS
+): List<TestCaseCounts>? {
+    val selectors =
+        if (classNames != null) {
+            classSelectors(classNames)
+        } else {
+            val root = Paths.get(testClassesDir)
+            if (Files.isDirectory(root)) {
+                DiscoverySelectors.selectClasspathRoots(setOf(root))
+            } else {
+                Log.i(TAG, "Missing test classes: $root")
+                emptyList()
+            }
+        }
+
+    val counts = HashMap<Pair<String, String>, IntArray>()
+    val ran = runJUnit(selectors, timeouts) { className, methodName, failed, timedOut ->
+        val count = counts.getOrPut(Pair(className, methodName)) { IntArray(3) }
+        count[0]++
+        if (failed) count[1]++
+        if (timedOut) count[2]++
+    }
+
+    return if (!ran) {
+        null
+    } else {
+        counts
+            .map { (key, count) ->
+                TestCaseCounts(key.first, key.second, count[0], count[1], count[2])
+            }
+            .sortedWith(compareBy({ it.className }, { it.methodName }))
+    }
+}
+
+/**
+ * Loads the JUnit Platform launcher and whichever test engines are on the classpath, by
+ * discovering nothing at all, so the first real run doesn't have to (see [TestWorker]).
+ */
+internal fun warmUpLauncher() {
+    LauncherFactory.create().discover(LauncherDiscoveryRequestBuilder.request().build())
+}
@@ -6,14 +6,18 @@
 
 package edu.rice.autograder
 
+import arrow.core.Try
 import com.fasterxml.jackson.annotation.JsonProperty
 import com.fasterxml.jackson.annotation.JsonRootName
+import com.fasterxml.jackson.databind.util.StdDateFormat
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlText
 import com.fasterxml.jackson.module.kotlin.readValue
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
 import java.util.Date
-import kotlin.math.max
-import kotlin.math.min
+import javax.xml.stream.XMLStreamConstants
 
 // A successful unit test file, with a name like TEST-edu.rice.json.ParserText.xml, looks like this:
 //
@@ -139,64 +143,107 @@ data class JFailure(
  */
 fun junitSuiteParser(fileData: String): JUnitSuite = jacksonXmlMapper.readValue(fileData)
 
-fun JTestCase.matches(className: String, methodName: String): Boolean {
-    val fixedMethodName = this.methodName?.replace(Regex("\\(\\).*$"), "") ?: ""
-    return fixedMethodName == methodName && this.className == className
-}
+/**
+ * We only ever look at the first few frames of a stack trace, so anything beyond
+ * this many characters is dropped by [junitSuiteStreamParser].
+ */
+const val MAX_STACK_TRACE_LENGTH = 16 * 1024
 
-private fun List<JUnitSuite>.find(className: String, methodName: String): List<JTestCase> =
-    flatMap { suite ->
-        suite.tests
-            ?.filter { it.matches(className, methodName) }
-            ?: emptyList()
-    }
+private const val TAG = "JUnitScanner"
 
 /**
- * Returns a list of [EvaluatorResult] -- one per [GGradeTopic] associated with
- * the given [GGradeProject].
+ * Streaming alternative to [junitSuiteParser], producing the same [JUnitSuite], except
+ * that failure stack traces are truncated to [MAX_STACK_TRACE_LENGTH] characters.
+ * Students who print in a loop can produce results files that are hundreds of
+ * megabytes long, nearly all of it inside `<system-out>` and `<system-err>`. This
+ * parser skips over those without ever holding them in memory, so its memory use
+ * depends only on the number of test cases, not on the size of the file.
  */
-fun List<JUnitSuite>.eval(project: GGradeProject): List<EvaluatorResult> =
-    project.topics.map { (topicName, topicMaxPoints, tests) ->
-        // - Each "topic" in a given project maps to one EvaluatorResult.
-        // - Each EvaluatorResult has all the points worked out and then
-        //   a list of UnitTestDeductions.
-        val topicResults = tests.map { (points, maxPoints, className, methodName, testFactory) ->
-            val name = "$className.$methodName"
-            val testResults = find(className, methodName)
-
-            when {
-                testFactory && testResults.isEmpty() ->
-                    UnitTestFactoryDeduction("$name: missing", maxPoints, name, 0, 0)
-
-                testResults.isEmpty() -> UnitTestDeduction("$name: missing", points, name)
-
-                testFactory -> {
-                    val numPassing = testResults.count { it.failure == null }
-                    val numFailing = testResults.count { it.failure != null }
-                    val totalTests = testResults.size
-                    val deduction = min(numFailing * points, maxPoints)
-
-                    UnitTestFactoryDeduction(
-                        "$name:\n$numPassing of $totalTests passing (-%.1f / fail)".format(points),
-                        deduction, name, numPassing, totalTests
+fun junitSuiteStreamParser(input: InputStream): JUnitSuite = input.withXmlStreamReader { reader ->
+    val suite = JUnitSuite()
+    val tests = ArrayList<JTestCase>()
+    var currentTest: JTestCase? = null
+    var currentFailure: JFailure? = null
+    val stackTrace = StringBuilder()
+
+    while (reader.hasNext()) {
+        when (reader.next()) {
+            XMLStreamConstants.START_ELEMENT -> when (reader.localName) {
+                "testsuite" -> with(suite) {
+                    className = reader.attribute("name")
+                    numTests = reader.attribute("tests")?.toIntOrNull() ?: 0
+                    numSkipped = reader.attribute("skipped")?.toIntOrNull() ?: 0
+                    numFailures = reader.attribute("failures")?.toIntOrNull() ?: 0
+                    numErrors = reader.attribute("errors")?.toIntOrNull() ?: 0
+                    timeStamp = reader.attribute("timestamp")?.let { StdDateFormat().parse(it) }
+                    hostName = reader.attribute("hostname")
+                    duration = reader.attribute("time")?.toDoubleOrNull() ?: 0.0
+                }
+
+                "testcase" -> {
+                    currentTest = JTestCase(
+                        reader.attribute("name"),
+                        reader.attribute("classname"),
+                        reader.attribute("time")?.toDoubleOrNull() ?: 0.0
                     )
                 }
 
-                testResults.find { it.failure != null } != null ->
-                    UnitTestDeduction("$name: failed", points, name)
+                "failure" -> {
+                    currentFailure =
+                        JFailure(reader.attribute("message"), reader.attribute("type"))
+                    stackTrace.setLength(0)
+                }
 
-                else -> UnitTestDeduction("$name: passed", 0.0, name)
+                // These are where the giant outputs live, and we never look at them.
+                "system-out", "system-err", "properties" -> reader.skipElement()
             }
-        }
 
-        val numTests = topicResults.size
-        val numPassingTests = topicResults.count { it.cost == 0.0 }
+            XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA ->
+                if (currentFailure != null) {
+                    reader.appendTextTo(stackTrace, MAX_STACK_TRACE_LENGTH)
+                }
 
-        val topicDeductions = min(topicResults.sumByDouble { it.cost }, topicMaxPoints)
-        val topicString = "$topicName: $numPassingTests of $numTests tests passed"
+            XMLStreamConstants.END_ELEMENT -> when (reader.localName) {
+                "failure" -> {
+                    currentFailure?.stackTrace = stackTrace.toString()
+                    currentTest?.failure = currentFailure
+                    currentFailure = null
+                }
 
-        EvaluatorResult(
-            topicDeductions == 0.0, max(topicMaxPoints - topicDeductions, 0.0),
-            topicMaxPoints, topicString, TESTS_CATEGORY, topicResults
-        )
+                "testcase" -> {
+                    currentTest?.let { tests.add(it) }
+                    currentTest = null
+                }
+            }
+        }
     }
+
+    // Jackson leaves the list null when there are no test cases, so we do the same.
+    suite.tests = if (tests.isEmpty()) null else tests
+    suite
+}
+
+/**
+ * Given a [Path] to a JUnit XML results file, returns a [Try]-wrapped [JUnitSuite],
+ * using [junitSuiteStreamParser] to read the file without loading it all into memory.
+ */
+fun Path.readJUnitSuite(): Try<JUnitSuite> = Try {
+    Files.newInputStream(this).use { junitSuiteStreamParser(it) }
+}.onFailure {
+    Log.e(TAG, "failed to read JUnit results from file(${this.fileName})", it)
+}
+
+/**
+ * JUnit reports method names like `testObjects()`, or `testObjects()[3]` for the
+ * third dynamic test from a TestFactory. This strips off the parentheses and
+ * everything after them, leaving just the method name (e.g., `testObjects`).
+ */
+fun String.normalizedMethodName(): String {
+    val parens = indexOf("()")
+    return if (parens < 0) this else substring(0, parens)
+}
+
+fun JTestCase.matches(className: String, methodName: String): Boolean {
+    val fixedMethodName = this.methodName?.normalizedMethodName() ?: ""
+    return fixedMethodName == methodName && this.className == className
+}
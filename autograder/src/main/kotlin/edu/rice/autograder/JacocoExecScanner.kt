@@ -0,0 +1,108 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import arrow.core.Try
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import kotlin.streams.toList
+import org.jacoco.core.analysis.Analyzer
+import org.jacoco.core.analysis.CoverageBuilder
+import org.jacoco.core.analysis.ICoverageNode
+import org.jacoco.core.tools.ExecFileLoader
+
+// Generating JaCoCo's XML and HTML reports, only to turn around and parse the XML,
+// is one of the slowest parts of grading. Instead, we can go straight to the source:
+// the binary execution data that JaCoCo's agent writes while the tests run (jacoco.exec),
+// plus the compiled class files, which we feed through JaCoCo's own analysis API.
+// We only analyze the classes that our coverage specs care about, and we produce the
+// same JacocoReport structure as the XML parsers, so eval doesn't know the difference.
+
+private const val TAG = "JacocoExecScanner"
+
+/**
+ * Given the JaCoCo execution data in [execFiles] and the root of the compiled
+ * class files in [classesDir], computes class-level counters for every class
+ * that falls under one of the [coverages] specs (or every class, if it's null),
+ * returning them as a [JacocoReport] just like [jacocoStreamParser] would from the
+ * XML report. With more than one execution data file (say, one per test shard), the
+ * data is merged first, so a line covered by any of them counts as covered.
+ */
+fun jacocoExecAnalyzer(
+    execFiles: List<Path>,
+    classesDir: Path,
+    coverages: List<GGradeCoverage>?
+): JacocoReport {
+    val specs = coverages?.let { CoverageSpecTrie(it) }
+    val loader = ExecFileLoader().apply { execFiles.forEach { load(it.toFile()) } }
+    val coverageBuilder = CoverageBuilder()
+    val analyzer = Analyzer(loader.executionDataStore, coverageBuilder)
+
+    // Class file paths map directly to class names, so we can filter out the classes
+    // we don't care about before paying to analyze them.
+    val classFiles = Files.walk(classesDir).use { stream ->
+        stream
+            .filter { Files.isRegularFile(it) && it.fileName.toString().endsWith(".class") }
+            .toList()
+    }
+
+    val relevantClassFiles = classFiles.filter {
+        val className = classesDir.relativize(it).toString()
+            .removeSuffix(".class")
+            .replace('\\', '/')
+            .fixClassName()
+        specs == null || specs.matchingSpec(className) != null
+    }
+
+    Log.i(TAG, "analyzing ${relevantClassFiles.size} of ${classFiles.size} class files")
+
+    relevantClassFiles.forEach { classFile ->
+        Files.newInputStream(classFile).use { analyzer.analyzeClass(it, classFile.toString()) }
+    }
+
+    val packages = coverageBuilder.classes
+        .groupBy { it.packageName }
+        .map { (packageName, classes) ->
+            JacocoPackage(
+                packageName,
+                classes.map { classCoverage ->
+                    // JaCoCo's XML report only includes the counters that have
+                    // something to count, so we do the same.
+                    val counters = ICoverageNode.CounterEntity.values()
+                        .map { it to classCoverage.getCounter(it) }
+                        .filter { (_, counter) -> counter.totalCount > 0 }
+                        .map { (entity, counter) ->
+                            JacocoCounter(
+                                JacocoCounterType.valueOf(entity.name),
+                                counter.missedCount,
+                                counter.coveredCount
+                            )
+                        }
+
+                    JacocoClass(
+                        classCoverage.name,
+                        classCoverage.sourceFileName,
+                        null,
+                        if (counters.isEmpty()) null else counters
+                    )
+                }
+            )
+        }
+
+    return JacocoReport(packages = packages)
+}
+
+/**
+ * Returns a [Try]-wrapped [JacocoReport] computed by [jacocoExecAnalyzer] from the
+ * execution data and class files named in the [context].
+ */
+fun GradingContext.readJacocoExec(coverages: List<GGradeCoverage>?): Try<JacocoReport> = Try {
+    jacocoExecAnalyzer(jacocoExecs.map { Paths.get(it) }, Paths.get(classesDir), coverages)
+}.onFailure {
+    Log.e(TAG, "failed to analyze JaCoCo execution data ($jacocoExecs)", it)
+}
@@ -6,10 +6,15 @@
 
 package edu.rice.autograder
 
+import arrow.core.Try
 import com.fasterxml.jackson.annotation.JsonProperty
 import com.fasterxml.jackson.annotation.JsonRootName
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty
 import com.fasterxml.jackson.module.kotlin.readValue
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import javax.xml.stream.XMLStreamConstants
 
 // This is easily the most complicated XML we'll have to deal with. The original XML
 // is one giant line, so check out the more human-readable version in:
@@ -51,10 +56,11 @@ data class JacocoReport(
         packages.associateNotNullBy { it.name }
     }
 
-    val classesMap by lazy {
+    // One pass over every class in every package; later packages win, as before.
+    val classesMap: Map<String, JacocoClass> by lazy {
         packageMap.values
-            .map { it.classMap }
-            .fold(emptyMap<String, JacocoClass>()) { a, b -> a + b }
+            .flatMap { it.classMap.toList() }
+            .toMap()
     }
 }
 
@@ -201,6 +207,103 @@ fun jacocoParser(fileData: String): JacocoReport? {
     else jacksonXmlMapper.readValue(fileData)
 }
 
+/**
+ * Streaming alternative to [jacocoParser]. The resulting [JacocoReport] only has
+ * packages and classes, and each class only has its name and class-level counters.
+ * Furthermore, only classes that fall under one of the [coverages] specs (whether
+ * including or excluding) are kept at all, since nothing else can ever be relevant
+ * to [eval]. Methods, source files, and per-line data are skipped without ever being
+ * materialized, which matters because a JaCoCo report for a large project can run
+ * to tens of megabytes, nearly all of which we'd otherwise throw away. If [coverages]
+ * is null, every class is kept (see [OutcomeSnapshot]).
+ */
+fun jacocoStreamParser(input: InputStream, coverages: List<GGradeCoverage>?): JacocoReport =
+    input.withXmlStreamReader { reader ->
+        val specs = coverages?.let { CoverageSpecTrie(it) }
+        val report = JacocoReport()
+        val packages = ArrayList<JacocoPackage>()
+        var currentPackage: JacocoPackage? = null
+        val classes = ArrayList<JacocoClass>()
+        var currentClass: JacocoClass? = null
+        val counters = ArrayList<JacocoCounter>()
+
+        while (reader.hasNext()) {
+            when (reader.next()) {
+                XMLStreamConstants.START_ELEMENT -> when (reader.localName) {
+                    "report" -> report.name = reader.attribute("name")
+
+                    "package" -> {
+                        currentPackage = JacocoPackage(reader.attribute("name"))
+                        classes.clear()
+                    }
+
+                    "class" -> {
+                        val name = reader.attribute("name")
+                        if (specs == null || specs.matchingSpec(name.fixClassName()) != null) {
+                            currentClass =
+                                JacocoClass(name, reader.attribute("sourcefilename"))
+                            counters.clear()
+                        } else {
+                            reader.skipElement()
+                        }
+                    }
+
+                    // Class-level counters are the only ones we keep; methods are skipped
+                    // below, so any counter we see inside a class belongs to the class.
+                    "counter" -> if (currentClass != null) {
+                        counters.add(
+                            JacocoCounter(
+                                enumValues<JacocoCounterType>()
+                                    .firstOrNull { it.name == reader.attribute("type") },
+                                reader.attribute("missed")?.toIntOrNull() ?: 0,
+                                reader.attribute("covered")?.toIntOrNull() ?: 0
+                            )
+                        )
+                    }
+
+                    "method", "sourcefile", "sessioninfo" -> reader.skipElement()
+                }
+
+                XMLStreamConstants.END_ELEMENT -> when (reader.localName) {
+                    "class" -> {
+                        currentClass?.let {
+                            // Jackson leaves the list null when there are no counters (e.g.,
+                            // for interfaces), and eval depends on this, so we do the same.
+                            it.counters = if (counters.isEmpty()) null else counters.toList()
+                            classes.add(it)
+                        }
+                        currentClass = null
+                    }
+
+                    "package" -> {
+                        currentPackage?.let {
+                            if (classes.isNotEmpty()) {
+                                it.classes = classes.toList()
+                                packages.add(it)
+                            }
+                        }
+                        currentPackage = null
+                    }
+                }
+            }
+        }
+
+        report.packages = packages
+        report
+    }
+
+/**
+ * Given a [Path] to a JaCoCo XML report, returns a [Try]-wrapped [JacocoReport], using
+ * [jacocoStreamParser] to read only the classes relevant to the given [coverages]
+ * (or every class, if it's null).
+ */
+fun Path.readJacocoReport(coverages: List<GGradeCoverage>?): Try<JacocoReport> = Try {
+    Log.i(TAG, "jacocoStreamParser: ${Files.size(this)} bytes")
+    Files.newInputStream(this).use { jacocoStreamParser(it, coverages) }
+}.onFailure {
+    Log.e(TAG, "failed to read JaCoCo results from file(${this.fileName})", it)
+}
+
 fun GCoverageStyle.toJacocoCounterType() = when (this) {
     GCoverageStyle.INSTRUCTIONS -> JacocoCounterType.INSTRUCTION
     GCoverageStyle.LINES -> JacocoCounterType.LINE
@@ -214,43 +317,23 @@ fun GGradeProject.jacocoResultsMissing() =
 
 private const val TAG = "JacocoScanner"
 
-private infix fun String.subClassOf(classOrPackageName: String): Boolean = when {
-    this == classOrPackageName -> true
-    this.startsWith("$classOrPackageName.") -> true
-    else -> false
-}
-
-fun JacocoReport.matchingClassSpecs(coverages: List<GGradeCoverage>): List<String> {
+fun JacocoReport.matchingClassSpecs(
+    coverages: List<GGradeCoverage>,
+    specs: CoverageSpecTrie = CoverageSpecTrie(coverages)
+): List<String> {
     // In our GGradeProject structure, the names of classes are going to be in normal human
     // form (e.g., edu.rice.autograder.test.Project3) while they'll be in slashy form in
     // the JacocoReport, which we fixed in classesMap (see calls to String?.fixClassName).
 
     Log.i(TAG, "looking for classes covered by: $coverages")
 
-    val packageSpecs = coverages
-        .filter { it.scope == GCoverageScope.PACKAGE }
-        .sortedBy { it.name }
-    val classSpecs = coverages
-        .filter { it.scope == GCoverageScope.CLASS }
-        .sortedBy { it.name }
-
-    Log.i(TAG, "possible packages: $packageSpecs")
-    Log.i(TAG, "possible classes: $classSpecs")
-
+    // The trie resolves which annotation wins for each class; see CoverageSpecTrie
+    // for the precedence rules.
     return classesMap.keys.filter { className ->
-        // We're working our way down from the most general to the most specific package annotation
-        // then the most general to the most specific class annotation (the sorting above is essential
-        // to make this happen). The logic here is that the last relevant annotation wins, so an inner
-        // "including" annotation overrides an external "excluding" annotation.
-
-        val matchingPackages = packageSpecs.filter { className subClassOf it.name }
-        val matchingClasses = classSpecs.filter { className subClassOf it.name }
-
-        val allSpecs = matchingPackages + matchingClasses
-
-        if (allSpecs.isNotEmpty()) {
-            Log.i(TAG, "for class ($className), found possible specs: $allSpecs")
-            allSpecs.fold(false) { _, next -> !next.excluded }
+        val spec = specs.matchingSpec(className)
+        if (spec != null) {
+            Log.i(TAG, "for class ($className), found spec: $spec")
+            !spec.excluded
         } else false
     }
 }
@@ -277,7 +360,24 @@ infix fun String?.isAnonymousInnerClassOf(name: String?) =
         startsWith(name) &&
         drop(name.length).matches(dollarsAndDigitsRegex)
 
-fun JacocoReport?.eval(project: GGradeProject): EvaluatorResult {
+/**
+ * Given an anonymous inner class name in JaCoCo's syntax, returns the name of the
+ * outermost class that it's an anonymous inner class of, by stripping off the trailing
+ * run of dollar signs and digits (e.g., `edu/rice/rpn/RpnCalc$1$2` becomes
+ * `edu/rice/rpn/RpnCalc`). For any class, `x isAnonymousInnerClassOf y` exactly
+ * when `x.anonymousOuterClassName() == y` and `y` isn't itself anonymous.
+ */
+fun String.anonymousOuterClassName(): String {
+    val runStart = indexOfLast { it != '$' && !it.isDigit() } + 1
+    val dollar = indexOf('$', runStart)
+    return if (dollar < 0) this else substring(0, dollar)
+}
+
+fun JacocoReport?.eval(
+    project: GGradeProject,
+    htmlReport: String,
+    specs: CoverageSpecTrie = CoverageSpecTrie(project.coverageAnnotations)
+): EvaluatorResult {
     if (this == null) {
         return project.jacocoResultsMissing()
     }
@@ -288,7 +388,7 @@ fun JacocoReport?.eval(project: GGradeProject): EvaluatorResult {
 
     val counterType = project.coverageStyle.toJacocoCounterType()
 
-    val matchingClassNames = matchingClassSpecs(project.coverageAnnotations).sorted()
+    val matchingClassNames = matchingClassSpecs(project.coverageAnnotations, specs).sorted()
 
     val matchingClasses = matchingClassNames.map {
         val jacocoRecord = classesMap[it]
@@ -335,12 +435,14 @@ fun JacocoReport?.eval(project: GGradeProject): EvaluatorResult {
     Log.i(TAG, "Regular classes with coverage counters: ${regularClasses.size}")
     Log.i(TAG, "Anonymous inner classes with coverage counters: ${anonymousClasses.size}")
 
+    // Rather than searching all the anonymous classes for each regular class, we
+    // group them by their outer class once, up front.
+    val anonymousClassesByOuter = anonymousClasses.groupBy { it.name?.anonymousOuterClassName() }
+
     val coverageReport = regularClasses.flatMap { classRecord ->
         val name = classRecord.name ?: Log.ethrow(TAG, "no name found for $classRecord")
 
-        val matchingAnonymousRecords = anonymousClasses.filter {
-            it.name isAnonymousInnerClassOf name
-        }
+        val matchingAnonymousRecords = anonymousClassesByOuter[name] ?: emptyList()
 
         val numAnonInner = matchingAnonymousRecords.size
 
@@ -406,11 +508,7 @@ fun JacocoReport?.eval(project: GGradeProject): EvaluatorResult {
             COVERAGE_CATEGORY,
             fails +
                 listOf(
-                    BasicDeduction(
-                        "See the coverage report for details:\n" +
-                            "${AutoGrader.buildDir}/reports/jacoco/index.html",
-                        0.0
-                    )
+                    BasicDeduction("See the coverage report for details:\n$htmlReport", 0.0)
                 )
         )
     }
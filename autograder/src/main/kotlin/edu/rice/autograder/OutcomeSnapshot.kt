@@ -0,0 +1,242 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import arrow.core.Try
+import arrow.core.getOrElse
+import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.module.kotlin.readValue
+import java.nio.file.Path
+import java.nio.file.Paths
+
+private const val TAG = "OutcomeSnapshot"
+
+// Grading happens in two phases. First, we read all the artifacts in a build directory
+// and boil them down to what happened, without reference to any grading policy: which
+// tests passed and failed, how many times, the coverage counters for every class, and
+// what the style tools had to say. That's an OutcomeSnapshot. Second, we apply a policy
+// to the snapshot, which is nothing but arithmetic. When the policy changes mid-semester
+// (say, a test is now worth more points), we only need to redo the second phase, which
+// takes no time at all, rather than going back to every submission's build artifacts.
+
+/** The name of the snapshot file, which goes in the autograder's output directory. */
+const val SNAPSHOT_FILE = "snapshot.json"
+
+/** Bump this whenever the format of [OutcomeSnapshot] changes. */
+const val OUTCOME_SNAPSHOT_FORMAT = 1
+
+/**
+ * How many times each test method ran (more than once for a TestFactory), how many of
+ * those runs failed, and how many of the failures were timeouts, with the method name
+ * normalized (see [normalizedMethodName]). Timeouts are only ever recorded when the
+ * autograder runs the tests itself (see [runTestCaseCounts]).
+ */
+data class TestCaseCounts(
+    val className: String,
+    val methodName: String,
+    val numRun: Int,
+    val numFailed: Int,
+    val numTimedOut: Int = 0
+)
+
+/**
+ * Everything we learned from one build directory, independent of any grading policy.
+ * The [tests] and [coverage] are null if their artifacts couldn't be found at all.
+ * If the snapshot was limited to particular test classes, [testClasses] are the ones
+ * whose results we found (or, if we ran the tests, that we could load), even if they
+ * didn't have any test cases, since that's enough for a policy to grade them.
+ */
+data class OutcomeSnapshot(
+    val format: Int,
+    val buildDir: String,
+    val jacocoHtmlReport: String,
+    val tests: List<TestCaseCounts>?,
+    val coverage: List<ClassCoverage>?,
+    val style: StyleOutcomes,
+    @get:JsonInclude(JsonInclude.Include.NON_NULL)
+    val testClasses: List<String>? = null
+)
+
+/** Sums up the runs and failures of each test method, over every suite. */
+fun List<JUnitSuite>.toTestCaseCounts(): List<TestCaseCounts> =
+    flatMap { it.tests ?: emptyList() }
+        .filter { it.className != null }
+        .groupBy { Pair(it.className ?: "", it.methodName?.normalizedMethodName() ?: "") }
+        .map { (key, cases) ->
+            TestCaseCounts(key.first, key.second, cases.size, cases.count { it.failure != null })
+        }
+        .sortedWith(compareBy({ it.className }, { it.methodName }))
+
+/**
+ * Reads every artifact in the build directory, ignoring the [GradingContext.gradedTestsOnly]
+ * setting, since we can't know which tests a future policy might care about. If you do
+ * know, you can limit the test results to those of the given [testClassNames]. The artifact
+ * cache, if enabled, is used just as it is for grading. If [GradingContext.runTests] is set,
+ * we run the tests ourselves rather than reading their results (see [runTestCaseCounts]),
+ * on one of the [GradingContext.testWorkers], if there are any, enforcing the given
+ * [timeouts] (see [GradingPlan.testTimeoutsByName]), which only a policy can tell us.
+ */
+fun GradingContext.snapshot(
+    testClassNames: List<String>? = null,
+    timeouts: Map<String, Long> = emptyMap()
+): OutcomeSnapshot {
+    // As with grading, each kind of artifact can be read independently of the others.
+    // Each of these yields the test outcomes and, given testClassNames, the classes found.
+    val testsFuture = ingestAsync {
+        if (runTests) {
+            val workers = testWorkers
+            return@ingestAsync if (workers != null) {
+                val response = runOnWorker(workers, testClassNames, timeouts)
+                Pair(response.tests, response.testClasses)
+            } else {
+                Pair(
+                    runTestCaseCounts(testClassNames, timeouts.toTestTimeouts()),
+                    testClassNames?.let { loadableTestClasses(it) }
+                )
+            }
+        }
+
+        val resultsFiles =
+            if (testClassNames == null) allTestResultsFiles(this)
+            else testResultsFiles(testClassNames)
+        val suites = readTestSuitesByFile(resultsFiles)
+        val foundFiles = suites.map { it.first.fileName.toString() }.toSet()
+        Pair(
+            if (suites.isEmpty()) null else suites.map { it.second }.toTestCaseCounts(),
+            testClassNames?.filter { testResultsFileName(it) in foundFiles }
+        )
+    }
+
+    // Coverage measured by a test worker's JaCoCo agent isn't there until the tests have run.
+    if (runTests && testWorkers?.measuresCoverage == true) testsFuture.join()
+    val coverageFuture = ingestAsync {
+        readCoverage(null).map { it.toClassCoverages() }.getOrElse { null }
+    }
+    val styleFuture = ingestAsync { readStyleOutcomes() }
+
+    val (tests, testClasses) = testsFuture.await()
+    return OutcomeSnapshot(
+        OUTCOME_SNAPSHOT_FORMAT,
+        buildDir,
+        jacocoHtmlReport,
+        tests,
+        coverageFuture.await(),
+        styleFuture.await(),
+        testClasses
+    )
+}
+
+/** Where the snapshot for this context is written. */
+val GradingContext.snapshotFile: Path
+    get() = Paths.get(outputDir, SNAPSHOT_FILE)
+
+/** Writes the snapshot to the output directory; see [snapshotFile]. */
+fun GradingContext.writeSnapshot(snapshot: OutcomeSnapshot) =
+    Try { jacksonJsonMapper.writeValueAsString(snapshot) }
+        .flatMap { snapshotFile.mkdirAndWriteFile(it).flatMap { it } }
+        .onFailure { Log.e(TAG, "failed to write $snapshotFile", it) }
+
+/** Reads the snapshot back from the output directory; see [snapshotFile]. */
+fun GradingContext.readSnapshot(): Try<OutcomeSnapshot> =
+    snapshotFile.readFile()
+        .flatMap { Try { jacksonJsonMapper.readValue<OutcomeSnapshot>(it) } }
+        .flatMap {
+            if (it.format == OUTCOME_SNAPSHOT_FORMAT) {
+                Try.just(it)
+            } else {
+                Try.raiseError(
+                    RuntimeException(
+                        "$snapshotFile has format ${it.format}, " +
+                            "expected $OUTCOME_SNAPSHOT_FORMAT; please take a new snapshot"
+                    )
+                )
+            }
+        }
+
+/**
+ * Applies the plan's policy to the snapshot, yielding exactly the same [ResultsReport]
+ * as grading the original build directory would have.
+ */
+fun OutcomeSnapshot.rescore(plan: GradingPlan): ResultsReport {
+    val project = plan.project
+
+    val unitTestResults = plan.unitTestResults(tests?.let { plan.outcomesFromCounts(it) })
+
+    val warningResults =
+        if (project.warningPoints == 0.0) emptyList()
+        else listOf(project.warningResult(style))
+
+    val jacocoResults =
+        when {
+            project.coveragePoints == 0.0 -> emptyList()
+            coverage == null -> listOf(project.jacocoResultsMissing())
+            else -> listOf(
+                coverage.toJacocoReport().eval(project, jacocoHtmlReport, plan.coverageSpecs)
+            )
+        }
+
+    return project.toResultsReport(unitTestResults + warningResults + jacocoResults)
+}
+
+/** Like [OutcomeSnapshot.rescore], for a single policy. */
+fun OutcomeSnapshot.rescore(project: GGradeProject) = rescore(GradingPlan(project))
+
+/**
+ * Grades the build directory against every one of the [plans], returning one [ResultsReport]
+ * per plan, in the same order. Each artifact is read and parsed only once, into an
+ * [OutcomeSnapshot], and then every plan is applied to that, so the reports are exactly
+ * the same as grading against each plan in turn, only without all the redundant work.
+ */
+fun GradingContext.gradeAll(plans: List<GradingPlan>): List<ResultsReport> {
+    // What one plan can skip, another might need, so fail-fast grading is one plan at a time.
+    if (runTests && failFast) return plans.map { it.toResultsReport(this) }
+
+    if (!gradedTestsOnly && !runTests) {
+        val snapshot = snapshot()
+        return plans.map { snapshot.rescore(it) }
+    }
+
+    // A test's outcome can only be shared if every plan that grades it gives it the same
+    // timeout. Otherwise, we have to run the tests for each plan on its own.
+    val timeouts = if (runTests) mergeTimeouts(plans) else emptyMap()
+    if (timeouts == null) {
+        Log.i(TAG, "the policies disagree on test timeouts, so grading them one at a time")
+        return plans.map { it.toResultsReport(this) }
+    }
+
+    // We only need the test results of the classes graded by at least one of the plans
+    // (or, with runTests, to run those classes), but a plan none of whose classes have
+    // results gets "No unit tests found", just as it would if it were graded on its own.
+    val snapshot = snapshot(plans.flatMap { it.gradedClassNames }.distinct().sorted(), timeouts)
+    val foundClasses = snapshot.testClasses.orEmpty().toSet()
+    return plans.map { plan ->
+        if (plan.gradedClassNames.any { it in foundClasses }) {
+            snapshot.rescore(plan)
+        } else {
+            snapshot.copy(tests = null).rescore(plan)
+        }
+    }
+}
+
+/**
+ * Merges the plans' [GradingPlan.testTimeoutsByName], or returns null if any two plans
+ * that grade the same test give it different timeouts (including none at all).
+ */
+private fun mergeTimeouts(plans: List<GradingPlan>): Map<String, Long>? {
+    val timeouts = HashMap<String, Long>()
+    val seen = HashSet<String>()
+    plans.forEach { plan ->
+        plan.testNames.forEach { (className, methodName) ->
+            val name = "$className.$methodName"
+            val timeout = plan.timeoutMillis(className, methodName)
+            if (name in seen && (timeouts[name] ?: 0L) != timeout) return null
+            seen.add(name)
+            if (timeout > 0) timeouts[name] = timeout
+        }
+    }
+    return timeouts
+}
@@ -0,0 +1,119 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import arrow.core.Try
+import arrow.core.getOrElse
+import com.fasterxml.jackson.module.kotlin.readValue
+import io.github.classgraph.ClassGraph
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
+import kotlin.streams.toList
+
+private const val TAG = "ScanIndexCache"
+
+// Even a narrowed ClassGraph scan has to open and parse every class file in the code
+// package, which is far too slow for something like a pre-commit hook that runs
+// autograderDebugAnnotations or autograderWriteConfig. Most of the time, though,
+// nothing has been recompiled since the last scan. So, we save the annotations we
+// found, along with a fingerprint of the class files they came from: the name, size,
+// and modification time of each one, which we can get without reading them. If the
+// fingerprint hasn't changed, we can skip the scan entirely.
+
+/** The name of the scan index file, which goes in the autograder's output directory. */
+const val SCAN_INDEX_FILE = "annotation-index.json"
+
+/** Bump this whenever the format of the scan index changes. */
+internal const val SCAN_INDEX_FORMAT = 1
+
+/** What we save after a scan, along with the [classFileFingerprint] it came from. */
+internal data class ScanIndex(
+    val format: Int,
+    val fingerprint: String,
+    val annotations: List<AnnotationTuple>
+)
+
+/**
+ * Computes a fingerprint of every class file in the given code package, in every directory
+ * on the classpath, from their names, sizes, and modification times. Jars are ignored, just
+ * as they are by [classGraphAnnotations].
+ */
+internal fun classFileFingerprint(codePackage: String): String {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update("$riceChecksVersion/$SCAN_INDEX_FORMAT/$codePackage\n".toByteArray())
+
+    val packagePath = codePackage.replace('.', '/')
+
+    ClassGraph().classpathFiles
+        .filter { it.isDirectory }
+        .map { it.toPath() }
+        .forEach { classpathDir ->
+            val packageDir = classpathDir.resolve(packagePath)
+            if (Files.isDirectory(packageDir)) {
+                val entries = Files.walk(packageDir).use { stream ->
+                    stream
+                        .filter { Files.isRegularFile(it) && it.toString().endsWith(".class") }
+                        .map {
+                            "${classpathDir.relativize(it)} ${Files.size(it)} " +
+                                "${Files.getLastModifiedTime(it).toMillis()}"
+                        }
+                        .toList()
+                }
+
+                digest.update("$classpathDir\n".toByteArray())
+                entries.sorted().forEach { digest.update("$it\n".toByteArray()) }
+            }
+        }
+
+    return digest.digest().joinToString("") { "%02x".format(it) }
+}
+
+/**
+ * Returns the same annotations as [classGraphAnnotations], but if the [scanIndexFile] was
+ * written by a previous scan and none of the class files have changed since, we use that
+ * instead. Otherwise, we scan, with up to [numThreads] threads, and update the file.
+ */
+internal fun cachedClassGraphAnnotations(
+    codePackage: String,
+    scanIndexFile: Path,
+    numThreads: Int
+): List<AnnotationTuple> {
+    val fingerprint = Try { classFileFingerprint(codePackage) }
+        .onFailure { Log.e(TAG, "failed to fingerprint the class files", it) }
+        .getOrElse { null }
+        ?: return classGraphAnnotations(codePackage, numThreads)
+
+    val cached =
+        if (!Files.exists(scanIndexFile)) {
+            null
+        } else {
+            scanIndexFile.readFile()
+                .flatMap { Try { jacksonJsonMapper.readValue<ScanIndex>(it) } }
+                .getOrElse { null }
+        }
+
+    if (cached != null &&
+        cached.format == SCAN_INDEX_FORMAT &&
+        cached.fingerprint == fingerprint
+    ) {
+        Log.i(TAG, "class files unchanged, using ${cached.annotations.size} annotations")
+        return cached.annotations
+    }
+
+    Log.i(TAG, "class files changed, scanning $codePackage")
+    val annotations = classGraphAnnotations(codePackage, numThreads)
+
+    Try {
+        jacksonJsonMapper.writeValueAsString(
+            ScanIndex(SCAN_INDEX_FORMAT, fingerprint, annotations)
+        )
+    }.flatMap { scanIndexFile.mkdirAndWriteFile(it).flatMap { it } }
+        .onFailure { Log.e(TAG, "failed to write $scanIndexFile", it) }
+
+    return annotations
+}
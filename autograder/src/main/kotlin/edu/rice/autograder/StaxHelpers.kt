@@ -0,0 +1,84 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import com.ctc.wstx.api.WstxInputProperties
+import com.ctc.wstx.stax.WstxInputFactory
+import java.io.InputStream
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamReader
+
+//
+// Jackson's XML data binding is lovely, but it has to read the entire document into
+// memory and materialize every element and every chunk of text. For files that might
+// be huge, we instead use StAX, a streaming "pull" parser, and only keep the bits we care
+// about. These helpers make that a little less painful.
+//
+// How much of a long text we're handed at once is up to the StAX implementation, so we
+// don't take whichever one happens to be found first on the classpath. We use Woodstox
+// (which Jackson's XML support depends on anyway), without coalescing, so a long text
+// arrives as a series of segments, each no longer than about two of its input buffers.
+//
+
+/** The length, in characters, of the XML parser's input buffer; see [withXmlStreamReader]. */
+internal const val XML_INPUT_BUFFER_CHARS = 8192
+
+// StAX factories aren't guaranteed to be thread-safe, so we keep one per thread.
+private val xmlInputFactory = ThreadLocal.withInitial {
+    WstxInputFactory().apply {
+        // We never want to go fetching DTDs or external entities from the network.
+        setProperty(XMLInputFactory.SUPPORT_DTD, false)
+        setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+        setProperty(XMLInputFactory.IS_COALESCING, false)
+        setProperty(WstxInputProperties.P_INPUT_BUFFER_LENGTH, XML_INPUT_BUFFER_CHARS)
+        setProperty(WstxInputProperties.P_MIN_TEXT_SEGMENT, 64)
+    }
+}
+
+/**
+ * Creates a streaming XML reader for the given input, runs [block] on it, and
+ * then closes the reader. The [input] is left for the caller to close.
+ */
+fun <T> InputStream.withXmlStreamReader(block: (XMLStreamReader) -> T): T {
+    val reader = xmlInputFactory.get().createXMLStreamReader(this)
+    return try {
+        block(reader)
+    } finally {
+        reader.close()
+    }
+}
+
+/** Fetches the attribute with the given local name from the current start element, if present. */
+fun XMLStreamReader.attribute(localName: String): String? =
+    getAttributeValue(null, localName)
+
+/**
+ * Call this when the reader is on a start element. Skips over everything up to
+ * and including the matching end element, without ever materializing any of the
+ * text inside, so it's cheap no matter how big the element might be.
+ */
+fun XMLStreamReader.skipElement() {
+    var depth = 1
+    while (depth > 0 && hasNext()) {
+        when (next()) {
+            XMLStreamConstants.START_ELEMENT -> depth++
+            XMLStreamConstants.END_ELEMENT -> depth--
+        }
+    }
+}
+
+/**
+ * Call this when the reader is on a text event. Appends the text to the [builder],
+ * but never lets the builder grow beyond [maxLength] characters.
+ */
+fun XMLStreamReader.appendTextTo(builder: StringBuilder, maxLength: Int) {
+    val remaining = maxLength - builder.length
+    if (remaining > 0) {
+        builder.append(textCharacters, textStart, minOf(textLength, remaining))
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import arrow.core.Try
+import java.nio.file.Path
+import java.nio.file.Paths
+
+private const val TAG = "TestShards"
+
+// A big graded test suite, run in a single test JVM, leaves most of a multi-core CI runner
+// sitting idle. Instead, we can split the graded test classes into shards, each run by its
+// own test task (and so its own JVM), all at once. To keep the shards balanced, we use how
+// long each test class took the last time it ran, from the "time" attribute of its JUnit
+// XML results, and hand out the classes longest first, each to whichever shard has the
+// least work so far (the classic LPT heuristic, which is never worse than 4/3 of optimal).
+// Each shard writes its own test results directory and JaCoCo execution data, and the
+// autograder reads them all back in together (see GradingContext.testResultsDirs and
+// GradingContext.jacocoExecs), so the report is the same as if one JVM had run everything.
+
+/** The test classes assigned to one shard, and how long we expect them to take. */
+data class TestShard(val classNames: List<String>, val expectedSeconds: Double)
+
+/**
+ * Splits the [classNames] into [numShards] shards (some of which might be empty), balancing
+ * their total [durations], in seconds. A class we have no duration for is assumed to take
+ * as long as the average class that we do know about. The result is deterministic, and
+ * each shard's classes are sorted.
+ */
+fun planShards(
+    classNames: List<String>,
+    durations: Map<String, Double>,
+    numShards: Int
+): List<TestShard> {
+    require(numShards > 0) { "numShards must be positive: $numShards" }
+
+    val known = classNames.mapNotNull { durations[it] }
+    val defaultDuration = if (known.isEmpty()) 1.0 else known.average()
+    val shardClasses = List(numShards) { ArrayList<String>() }
+    val shardSeconds = DoubleArray(numShards)
+
+    classNames
+        .distinct()
+        .map { Pair(it, durations[it] ?: defaultDuration) }
+        .sortedWith(compareBy({ -it.second }, { it.first }))
+        .forEach { (className, seconds) ->
+            val shard = shardSeconds.indices.minBy { shardSeconds[it] } ?: 0
+            shardClasses[shard].add(className)
+            shardSeconds[shard] += seconds
+        }
+
+    return shardClasses.mapIndexed { shard, names ->
+        TestShard(names.sorted(), shardSeconds[shard])
+    }
+}
+
+/**
+ * Returns how long each test class took to run, in seconds, according to the JUnit XML
+ * results in all of the context's [GradingContext.testResultsDirs]. If a class has results
+ * in more than one of them (say, from a shard and from an older unsharded run), only its
+ * newest results count, by their timestamp, or the longest, if the timestamps are the same.
+ */
+fun GradingContext.testClassDurations(): Map<String, Double> =
+    allTestResultsFiles(this)
+        .parallelMap { it.readJUnitSuite().asList() }
+        .flatten()
+        .filter { it.className != null }
+        .groupBy { it.className ?: "" }
+        .mapValues { (_, suites) ->
+            suites.maxWith(compareBy({ it.timeStamp }, { it.duration }))?.duration ?: 0.0
+        }
+
+/** Where shard number [shard] (counting from 1) writes its list of test classes. */
+fun shardFile(shardDir: String, shard: Int): Path = Paths.get(shardDir, "shard-$shard.txt")
+
+/**
+ * Writes each of the [shards] to its own file in the [shardDir] (see [shardFile]), one test
+ * class name per line, suitable for Gradle's `filter.includeTestsMatching`.
+ */
+fun writeShards(shardDir: String, shards: List<TestShard>): Try<Unit> = Try {
+    shards.forEachIndexed { index, shard ->
+        Log.i(
+            TAG,
+            "shard ${index + 1}: ${shard.classNames.size} classes, " +
+                "about %.1f seconds".format(shard.expectedSeconds)
+        )
+        shardFile(shardDir, index + 1)
+            .mkdirAndWriteFile(shard.classNames.joinToString("") { "$it\n" })
+            .flatMap { it }
+            .getOrFail()
+    }
+}
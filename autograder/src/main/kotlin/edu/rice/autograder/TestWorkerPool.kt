@@ -0,0 +1,425 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import arrow.core.Try
+import arrow.core.getOrElse
+import com.fasterxml.jackson.module.kotlin.readValue
+import java.io.BufferedReader
+import java.io.BufferedWriter
+import java.io.File
+import java.io.FileDescriptor
+import java.io.FileOutputStream
+import java.io.PrintStream
+import java.net.URL
+import java.net.URLClassLoader
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinWorkerThread
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+private const val TAG = "TestWorkerPool"
+
+// Running a submission's tests in the grader's own JVM (--run-tests) is fast, but one
+// submission's tests can leave threads running, fill up static fields, or otherwise
+// spoil the JVM for the next one. A fresh JVM per submission fixes that, but then every
+// submission pays for JVM startup, loading the JUnit Platform, and JIT warmup all over
+// again. A TestWorkerPool splits the difference: it keeps a few test worker JVMs running,
+// each of which has already loaded and exercised the launcher (and, optionally, has the
+// JaCoCo agent attached). Each submission's tests run in a fresh class loader in one of
+// those workers, with the outcomes sent back over the worker's stdout as one line of JSON.
+// A worker is replaced after a fixed number of submissions, or right away if a submission
+// leaves threads behind, takes too long, or kills the worker outright.
+
+/** What a test worker prints once it's ready for its first request. */
+private const val WORKER_READY = "RICECHECKS-WORKER-READY"
+
+/**
+ * One submission's worth of work for a [TestWorker]: the [classpath] of the submission
+ * (plus any libraries it needs, like the JUnit Jupiter engine), the test classes to run
+ * (or, if [classNames] is null, every test class in the [testClassesDir]), their
+ * [timeouts] (see [GradingPlan.testTimeoutsByName]), and where to
+ * write the JaCoCo agent's execution data, if anywhere.
+ */
+data class TestWorkerRequest(
+    val classpath: List<String>,
+    val classNames: List<String>?,
+    val testClassesDir: String,
+    val timeouts: Map<String, Long> = emptyMap(),
+    val jacocoExec: String? = null
+)
+
+/**
+ * What a [TestWorker] sends back: the outcome of every test method (see
+ * [runTestCaseCounts]), or null if there were no tests to run, an [error], if the worker
+ * couldn't run the tests at all, and whether the submission [leaked] threads, in which case
+ * the worker shouldn't be used again. If the request named its test classes, [testClasses]
+ * are the ones the worker could load (see [OutcomeSnapshot.testClasses]).
+ */
+data class TestWorkerResponse(
+    val tests: List<TestCaseCounts>?,
+    val error: String? = null,
+    val leaked: Boolean = false,
+    val testClasses: List<String>? = null
+)
+
+/**
+ * The main class of a test worker JVM, started by a [TestWorkerPool]. It reads one
+ * [TestWorkerRequest] per line from stdin, and writes one [TestWorkerResponse] per line
+ * to stdout, until stdin is closed.
+ */
+object TestWorker {
+    @JvmStatic
+    fun main(args: Array<String>) {
+        // Stdout is our pipe back to the grader, so the tests mustn't print to it.
+        val pipe = PrintStream(FileOutputStream(FileDescriptor.out), true, "UTF-8")
+        System.setOut(System.err)
+
+        // We're replaced as soon as a test leaves a thread running, so a test that won't stop
+        // can be left to run, while the rest of its tests carry on (see runTestCaseCounts).
+        abandonStuckTests = true
+        warmUpLauncher()
+        pipe.println(WORKER_READY)
+
+        val input = System.`in`.bufferedReader()
+        while (true) {
+            val line = input.readLine() ?: break
+            val response = Try { jacksonJsonMapper.readValue<TestWorkerRequest>(line) }
+                .flatMap { Try { it.runHere() } }
+                .getOrElse { TestWorkerResponse(null, it.toString(), true) }
+            pipe.println(jacksonJsonMapper.writeValueAsString(response))
+        }
+    }
+}
+
+// Threads that a submission might have left behind; the fork-join pool's threads
+// come and go on their own, so they don't count.
+private fun liveThreads() =
+    Thread.getAllStackTraces().keys.filter { it.isAlive && it !is ForkJoinWorkerThread }
+
+/** Runs the request in this JVM, which is normally a [TestWorker]. */
+internal fun TestWorkerRequest.runHere(): TestWorkerResponse {
+    val threadsBefore = liveThreads().toSet()
+    val agent = JacocoAgent.get()
+    agent?.reset()
+
+    val urls = classpath.map { Paths.get(it).toUri().toURL() }.toTypedArray()
+    val loader = SubmissionClassLoader(urls, TestWorker::class.java.classLoader)
+    val (tests, testClasses) = loader.use {
+        withContextClassLoader(it) {
+            Pair(
+                GradingContext(testClassesDir = testClassesDir)
+                    .runTestCaseCounts(classNames, timeouts.toTestTimeouts()),
+                classNames?.let { names -> loadableTestClasses(names) }
+            )
+        }
+    }
+
+    if (agent != null && jacocoExec != null) {
+        Paths.get(jacocoExec).let {
+            Files.createDirectories(it.parent)
+            Files.write(it, agent.executionData())
+        }
+    }
+
+    val leftovers = liveThreads().filter { it !in threadsBefore }
+    leftovers.forEach { Log.e(TAG, "thread left running: ${it.name}") }
+    return TestWorkerResponse(tests, leaked = leftovers.isNotEmpty(), testClasses = testClasses)
+}
+
+/** The packages a [SubmissionClassLoader] always takes from the worker. */
+private val SHARED_PACKAGES = listOf(
+    "java.", "javax.", "sun.", "jdk.",
+    "org.junit.platform.", "org.opentest4j.", "org.apiguardian.", "edu.rice.autograder."
+)
+
+/**
+ * Loads a submission's classes from its own [urls] first, even if the worker happens to
+ * have classes of the same name, so a submission only ever sees its own code. Only the JDK,
+ * the JUnit Platform, and the autograder itself come from the worker's class loader, so the
+ * JUnit Platform classes the submission sees are the very same ones the launcher uses.
+ */
+internal class SubmissionClassLoader(urls: Array<URL>, parent: ClassLoader) :
+    URLClassLoader(urls, parent) {
+    override fun loadClass(name: String, resolve: Boolean): Class<*> =
+        synchronized(getClassLoadingLock(name)) {
+            val loaded = findLoadedClass(name) ?: when {
+                SHARED_PACKAGES.any { name.startsWith(it) } -> super.loadClass(name, false)
+                else -> try {
+                    findClass(name)
+                } catch (e: ClassNotFoundException) {
+                    super.loadClass(name, false)
+                }
+            }
+            if (resolve) resolveClass(loaded)
+            loaded
+        }
+}
+
+/**
+ * The JaCoCo agent's runtime API, if the agent is attached to this JVM. We only need
+ * two of its methods, so we use reflection, rather than depending on the agent itself.
+ */
+private class JacocoAgent(private val agent: Any) {
+    private val agentInterface = agent.javaClass.interfaces
+        .first { it.name == "org.jacoco.agent.rt.IAgent" }
+
+    fun reset() {
+        agentInterface.getMethod("reset").invoke(agent)
+    }
+
+    fun executionData(): ByteArray =
+        agentInterface.getMethod("getExecutionData", Boolean::class.javaPrimitiveType)
+            .invoke(agent, false) as ByteArray
+
+    companion object {
+        fun get(): JacocoAgent? =
+            Try { Class.forName("org.jacoco.agent.rt.RT").getMethod("getAgent").invoke(null) }
+                .map { JacocoAgent(it) }
+                .getOrElse { null }
+    }
+}
+
+/**
+ * The libraries a test worker needs, each named by one of its classes. Wherever this JVM
+ * found those classes, the worker finds them too, but nothing else from our classpath,
+ * which might well have a submission's classes on it (when grading from a build, say).
+ */
+private val WORKER_LIBRARY_CLASSES = listOf(
+    // Our annotations, which are written in Java, so they might be compiled somewhere else
+    "edu.rice.autograder.annotations.Grade",
+    // Kotlin and Arrow
+    "kotlin.Unit", "kotlin.internal.jdk7.JDK7PlatformImplementations",
+    "kotlin.internal.jdk8.JDK8PlatformImplementations", "kotlin.reflect.full.KClasses",
+    "arrow.core.Try", "arrow.Kind",
+    // Jackson, and what its XML and YAML support need
+    "com.fasterxml.jackson.annotation.JsonInclude", "com.fasterxml.jackson.core.JsonFactory",
+    "com.fasterxml.jackson.databind.ObjectMapper",
+    "com.fasterxml.jackson.module.kotlin.KotlinModule",
+    "com.fasterxml.jackson.module.jaxb.JaxbAnnotationModule",
+    "com.fasterxml.jackson.dataformat.xml.XmlMapper",
+    "com.fasterxml.jackson.dataformat.yaml.YAMLMapper", "org.yaml.snakeyaml.Yaml",
+    "com.ctc.wstx.stax.WstxInputFactory", "org.codehaus.stax2.XMLStreamReader2",
+    // The JUnit Platform launcher
+    "org.junit.platform.launcher.core.LauncherFactory",
+    "org.junit.platform.engine.TestEngine", "org.junit.platform.commons.util.ReflectionUtils",
+    "org.opentest4j.AssertionFailedError", "org.apiguardian.api.API",
+    // Logging
+    "org.slf4j.LoggerFactory", "ch.qos.logback.classic.Logger", "ch.qos.logback.core.Appender"
+)
+
+/**
+ * The test worker's classpath: the autograder's own code source, plus those of the
+ * [WORKER_LIBRARY_CLASSES]. Libraries we don't have (logback, say) are left out.
+ */
+internal val workerClasspath: List<String> by lazy {
+    val loader = TestWorker::class.java.classLoader
+    (listOf(TestWorker::class.java.name) + WORKER_LIBRARY_CLASSES)
+        .mapNotNull { name ->
+            Try { Class.forName(name, false, loader).protectionDomain.codeSource?.location }
+                .onFailure { Log.i(TAG, "test workers won't have $name") }
+                .getOrElse { null }
+        }
+        .map { Paths.get(it.toURI()).toString() }
+        .distinct()
+}
+
+/** One test worker JVM, as seen from the pool. Only one thread uses it at a time. */
+private class WorkerProcess(command: List<String>, logFile: File) {
+    private val process: Process = ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.appendTo(logFile))
+        .start()
+    private val toWorker: BufferedWriter = process.outputStream.bufferedWriter()
+    private val fromWorker: BufferedReader = process.inputStream.bufferedReader()
+
+    // Reading from the worker blocks, so we read on another thread, letting us time out.
+    private val readerThread: ExecutorService = Executors.newSingleThreadExecutor { r ->
+        Thread(r, "$TAG-reader").apply { isDaemon = true }
+    }
+    private var ready = false
+
+    /** How many requests this worker has been given. */
+    var uses = 0
+        private set
+
+    private fun readLine(timeoutMillis: Long): String? =
+        Try {
+            readerThread.submit(Callable { fromWorker.readLine() })
+                .get(timeoutMillis, TimeUnit.MILLISECONDS)
+        }.getOrElse { null }
+
+    /**
+     * Sends the request, and waits for the response, which is null if the worker didn't
+     * answer in time (including starting up, the first time), or died trying.
+     */
+    fun run(request: TestWorkerRequest, timeoutMillis: Long): TestWorkerResponse? {
+        uses++
+        if (!ready) {
+            ready = readLine(timeoutMillis) == WORKER_READY
+            if (!ready) return null
+        }
+
+        return Try {
+            toWorker.write(jacksonJsonMapper.writeValueAsString(request))
+            toWorker.newLine()
+            toWorker.flush()
+        }
+            .map { readLine(timeoutMillis) }
+            .map { line -> line?.let { jacksonJsonMapper.readValue<TestWorkerResponse>(it) } }
+            .getOrElse { null }
+    }
+
+    fun destroy() {
+        process.destroyForcibly()
+        readerThread.shutdownNow()
+    }
+}
+
+/**
+ * Keeps [size] test worker JVMs running (see [TestWorker]), each of which runs one
+ * submission's tests at a time, and is replaced after [maxUses] submissions, or as soon
+ * as a submission leaves threads running, or takes longer than [timeoutMillis] for all of
+ * its tests. Each submission's classpath is its compiled classes plus the
+ * [extraClasspath], which needs to have the JUnit Jupiter engine and anything else the
+ * tests depend on. The workers run with the given [jvmArgs], and if a [jacocoAgent] jar
+ * is given, it's attached to every worker, and each submission's coverage is written to
+ * its [GradingContext.jacocoExecs]. Every worker's stderr, including anything the tests
+ * print, goes to a log file in the [logDir].
+ *
+ * A pool may be shared by any number of threads, each of which waits its turn for a
+ * worker. Be sure to [close] it, which stops the workers.
+ */
+class TestWorkerPool(
+    val size: Int,
+    val maxUses: Int = 50,
+    val timeoutMillis: Long = 10 * 60 * 1000L,
+    val extraClasspath: List<String> = emptyList(),
+    val jvmArgs: List<String> = emptyList(),
+    val jacocoAgent: String? = null,
+    val logDir: Path = Paths.get(System.getProperty("java.io.tmpdir"))
+) : AutoCloseable {
+    private val idle = LinkedBlockingQueue<WorkerProcess>()
+    private val workerCount = AtomicInteger(0)
+
+    @Volatile
+    private var closed = false
+
+    /** Whether the workers measure coverage, which then only exists once the tests run. */
+    val measuresCoverage: Boolean
+        get() = jacocoAgent != null
+
+    init {
+        require(size > 0) { "a test worker pool needs at least one worker" }
+        Files.createDirectories(logDir)
+        // The workers all start up at once, and warm up while we get everything else ready.
+        repeat(size) { idle.add(startWorker()) }
+    }
+
+    private fun startWorker(): WorkerProcess {
+        val id = workerCount.incrementAndGet()
+        val java = Paths.get(System.getProperty("java.home"), "bin", "java").toString()
+        val agentArgs = jacocoAgent?.let { listOf("-javaagent:$it=output=none") } ?: emptyList()
+        val classpath = workerClasspath.joinToString(File.pathSeparator)
+        val command = listOf(java) + jvmArgs + agentArgs +
+            listOf("-cp", classpath, TestWorker::class.java.name)
+
+        Log.i(TAG, "starting test worker $id")
+        return WorkerProcess(command, logDir.resolve("test-worker-$id.log").toFile())
+    }
+
+    /**
+     * Runs the request on the next free worker, waiting for one if need be, and returns
+     * its response, replacing the worker afterward if it's worn out or misbehaved.
+     */
+    fun run(request: TestWorkerRequest): TestWorkerResponse {
+        check(!closed) { "test worker pool is closed" }
+
+        val worker = idle.take()
+        var response: TestWorkerResponse? = null
+        try {
+            response = worker.run(request, timeoutMillis)
+            return response ?: TestWorkerResponse(null, "test worker timed out or died", true)
+        } finally {
+            when {
+                // The pool was closed while we were running, so it can't stop this worker.
+                closed -> worker.destroy()
+
+                response != null && !response.leaked && worker.uses < maxUses -> release(worker)
+
+                else -> {
+                    Log.i(TAG, "retiring a test worker after ${worker.uses} uses")
+                    worker.destroy()
+                    if (!closed) release(startWorker())
+                }
+            }
+        }
+    }
+
+    /** Puts the worker back for the next request, or destroys it if the pool has closed. */
+    private fun release(worker: WorkerProcess) {
+        idle.add(worker)
+        // close() might have emptied the queue just before we added to it.
+        if (closed && idle.remove(worker)) worker.destroy()
+    }
+
+    /** How many workers are waiting for a request. */
+    internal val idleWorkers: Int
+        get() = idle.size
+
+    /** Stops every worker. Any requests still running will fail. */
+    override fun close() {
+        closed = true
+        generateSequence { idle.poll() }.forEach { it.destroy() }
+    }
+}
+
+/** Everything a submission's tests need from its build directory. */
+val GradingContext.submissionClasspath: List<String>
+    get() = listOf(
+        classesDir, testClassesDir, "$buildDir/resources/main", "$buildDir/resources/test"
+    )
+
+/**
+ * Like [runTestCaseCounts], but the tests run on one of the [pool]'s workers, with this
+ * context's [submissionClasspath]. Returns null if there weren't any tests to run, or if
+ * the worker failed altogether (which is logged).
+ */
+fun GradingContext.runTestCaseCounts(
+    pool: TestWorkerPool,
+    classNames: List<String>?,
+    timeouts: Map<String, Long> = emptyMap()
+): List<TestCaseCounts>? = runOnWorker(pool, classNames, timeouts).tests
+
+/** Sends this context's tests to one of the [pool]'s workers; see [runTestCaseCounts]. */
+internal fun GradingContext.runOnWorker(
+    pool: TestWorkerPool,
+    classNames: List<String>?,
+    timeouts: Map<String, Long>
+): TestWorkerResponse {
+    val response = pool.run(
+        TestWorkerRequest(
+            submissionClasspath + pool.extraClasspath,
+            classNames,
+            testClassesDir,
+            timeouts,
+            if (pool.measuresCoverage) jacocoExecs.first() else null
+        )
+    )
+    if (response.error != null) Log.e(TAG, "tests failed to run for $buildDir: ${response.error}")
+    return response
+}
+
+/** Like [GradingPlan.runTests], but on one of the [pool]'s workers. */
+fun GradingPlan.runTests(pool: TestWorkerPool, context: GradingContext): TestOutcomes? =
+    context.runTestCaseCounts(pool, gradedClassNames, testTimeoutsByName)
+        ?.let { outcomesFromCounts(it) }
@@ -0,0 +1,50 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autogradertest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+import edu.rice.autograder.annotations.Grade;
+import edu.rice.autograder.annotations.GradeProject;
+import edu.rice.autograder.annotations.GradeTopic;
+import java.util.Arrays;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+// Some of these tests deliberately run too long, so they're only enabled when
+// GraderTest runs them, to see that their timeouts are enforced.
+@GradeProject(name = "TP4", description = "Timeouts")
+@GradeTopic(project = "TP4", topic = "Timeouts")
+@EnabledIfSystemProperty(named = "edu.rice.autogradertest.timeouts", matches = "true")
+public class TestProject4 {
+  private static void sleepForAMinute() throws InterruptedException {
+    Thread.sleep(60_000);
+  }
+
+  @Test
+  @Grade(project = "TP4", topic = "Timeouts", points = 1.0, timeoutMillis = 10_000)
+  void testQuick() {
+    assertEquals(4, 2 + 2);
+  }
+
+  @Test
+  @Grade(project = "TP4", topic = "Timeouts", points = 2.0, timeoutMillis = 100)
+  void testSlow() throws InterruptedException {
+    sleepForAMinute();
+  }
+
+  @TestFactory
+  @Grade(project = "TP4", topic = "Timeouts", points = 1.0, maxPoints = 2.0, timeoutMillis = 100)
+  Iterable<DynamicTest> testSometimesSlow() {
+    return Arrays.asList(
+        dynamicTest("quick", () -> assertEquals(4, 2 + 2)),
+        dynamicTest("slow", TestProject4::sleepForAMinute));
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autogradertest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import edu.rice.autograder.annotations.Grade;
+import edu.rice.autograder.annotations.GradeProject;
+import edu.rice.autograder.annotations.GradeTopic;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+// A test that ignores its timeout, and keeps running after it's interrupted, followed by
+// one that should still be graded. Like TestProject4, it only runs when GraderTest asks.
+@GradeProject(name = "TP5", description = "Stuck tests")
+@GradeTopic(project = "TP5", topic = "Stuck")
+@EnabledIfSystemProperty(named = "edu.rice.autogradertest.timeouts", matches = "true")
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class TestProject5 {
+  @Test
+  @Order(1)
+  @Grade(project = "TP5", topic = "Stuck", points = 1.0, timeoutMillis = 100)
+  void testSpinning() {
+    // Long enough to be given up on, but not so long that it outlives GraderTest.
+    long end = System.nanoTime() + 5_000_000_000L;
+    while (System.nanoTime() < end) {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  @Order(2)
+  @Grade(project = "TP5", topic = "Stuck", points = 1.0, timeoutMillis = 10_000)
+  void testAfterSpinning() {
+    assertEquals(4, 2 + 2);
+  }
+}
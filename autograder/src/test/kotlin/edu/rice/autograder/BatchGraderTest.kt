@@ -0,0 +1,33 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class BatchGraderTest {
+    @Test
+    fun plainNamesPassThrough() {
+        assertEquals(
+            listOf("a/build", "b/build"),
+            expandBuildDirs(listOf("b/build", "a/build", "a/build"))
+        )
+    }
+
+    @Test
+    fun globsExpandToDirectories() {
+        // tests are run from the autograder directory, so our test resources are right here
+        assertEquals(
+            listOf("src/test/resources/comp215-build"),
+            expandBuildDirs(listOf("src/test/resources/*-build"))
+        )
+        assertEquals(
+            emptyList<String>(),
+            expandBuildDirs(listOf("src/test/resources/*-nothing-matches"))
+        )
+    }
+}
@@ -0,0 +1,588 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder
+
+import com.fasterxml.jackson.module.kotlin.readValue
+import edu.rice.autogradertest.TestProject3
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.CompletableFuture
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Assertions.fail
+import org.junit.jupiter.api.Test
+
+/**
+ * A hand-built policy that refers to a handful of tests from our sample build
+ * directory, with a mix of passing, failing, missing, and TestFactory tests.
+ */
+internal val sampleProject = GGradeProject(
+    "Sample", "Sample project against comp215-build", 11.0,
+    0.0, true, true, true,
+    0.0, GCoverageStyle.LINES, 0.0, emptyList(),
+    listOf(
+        GGradeTopic(
+            "Mixed", 10.0,
+            listOf(
+                GGradeTest(1.0, 0.0, "edu.rice.json.ParserTest", "buildersEquivalentToParser"),
+                GGradeTest(
+                    2.0, 0.0,
+                    "edu.rice.qt.ListTheories", "stringConcatenationIsNotCommutative"
+                ),
+                GGradeTest(0.5, 3.0, "edu.rice.tree.TreapTest", "testSuite", true),
+                GGradeTest(1.0, 0.0, "edu.rice.nothing.NoSuchTest", "missing")
+            )
+        ),
+        GGradeTopic(
+            "Exhausted", 1.0,
+            listOf(
+                GGradeTest(
+                    5.0, 0.0,
+                    "edu.rice.qt.ListTheories", "stringConcatenationIsAssociative"
+                )
+            )
+        )
+    )
+)
+
+internal const val sampleBuildDir = "src/test/resources/comp215-build"
+
+class GraderTest {
+    private val grader = Grader(GradingContext(buildDir = sampleBuildDir))
+
+    @Test
+    fun gradesSampleProject() {
+        val report = grader.grade(sampleProject)
+
+        assertFalse(report.allPassing)
+        assertEquals(11.0, report.maxPoints)
+        assertEquals(6.0, report.points)
+        assertEquals(listOf(6.0, 0.0), report.results.map { it.points })
+
+        val factoryDeduction = report.results[0].deductions
+            .filterIsInstance<UnitTestFactoryDeduction>()
+            .single()
+        assertEquals(23, factoryDeduction.numPassed)
+        assertEquals(25, factoryDeduction.numChecked)
+        assertEquals(1.0, factoryDeduction.cost)
+    }
+
+    @Test
+    fun copiedContextsDeriveTheirPaths() {
+        val context = GradingContext(buildDir = "one", outputDir = "out", classesDir = "classes")
+        val copied = context.copy(buildDir = "two", outputDir = "elsewhere")
+
+        // Paths that weren't given follow the new directories, while the given ones stay put.
+        assertEquals(listOf("two/test-results/test"), copied.testResultsDirs)
+        assertEquals("two/logs/compile.log", copied.compilerLog)
+        assertEquals("elsewhere/cache", copied.cacheDir)
+        assertEquals("classes", copied.classesDir)
+        assertEquals(
+            GradingContext(buildDir = "two", outputDir = "elsewhere", classesDir = "classes"),
+            copied
+        )
+        assertFalse(context == copied)
+    }
+
+    @Test
+    fun gradingPlanHandlesRepeatedTests() {
+        val context = GradingContext(buildDir = sampleBuildDir)
+        val suites = allTestResultsFiles(context).map { it.readJUnitSuite().getOrFail() }
+
+        // Grading the same test method in two topics shouldn't confuse the test IDs.
+        val project = sampleProject.copy(
+            topics = sampleProject.topics + sampleProject.topics[0].copy(name = "Again")
+        )
+        val plan = GradingPlan(project)
+
+        assertEquals(5, plan.numTests)
+        assertEquals(-1, plan.testId("edu.rice.json.ParserTest", "noSuchTest"))
+        val results = plan.eval(plan.outcomes(suites))
+        assertEquals(results[0].points, results.last().points)
+        assertEquals(results[0].deductions, results.last().deductions)
+        assertEquals(project.toResultsReport(context), plan.toResultsReport(context))
+    }
+
+    @Test
+    fun testFilterPatternsNameEachGradedTestOnce() {
+        val project = sampleProject.copy(
+            topics = sampleProject.topics + sampleProject.topics[0].copy(name = "Again")
+        )
+
+        assertEquals(
+            listOf(
+                "edu.rice.json.ParserTest.buildersEquivalentToParser",
+                "edu.rice.nothing.NoSuchTest.missing",
+                "edu.rice.qt.ListTheories.stringConcatenationIsAssociative",
+                "edu.rice.qt.ListTheories.stringConcatenationIsNotCommutative",
+                "edu.rice.tree.TreapTest.testSuite"
+            ),
+            GradingPlan(project).testFilterPatterns
+        )
+    }
+
+    @Test
+    fun gradedTestsOnlyMatchesFullScan() {
+        val context = GradingContext(buildDir = sampleBuildDir, gradedTestsOnly = true)
+        val files = sampleProject.gradedTestResultsFiles(context)
+
+        // NoSuchTest has no results file, so we only read the other three.
+        assertEquals(3, files.size)
+        assertEquals(grader.grade(sampleProject), Grader(context).grade(sampleProject))
+    }
+
+    @Test
+    fun missingJacocoExecIsMissingCoverage() {
+        // Our sample build directory has the XML report but no execution data.
+        val context = GradingContext(buildDir = sampleBuildDir, coverageFromExec = true)
+        val project = sampleProject.copy(coveragePoints = 1.0)
+
+        assertTrue(context.readJacocoExec(project.coverageAnnotations).isFailure())
+        assertEquals(listOf(project.jacocoResultsMissing()), project.jacocoAggregator(context))
+    }
+
+    @Test
+    fun cachedGradingIsConsistent() {
+        val outputDir = Files.createTempDirectory("autograder")
+        val context = GradingContext(
+            buildDir = sampleBuildDir,
+            outputDir = outputDir.toString(),
+            useCache = true
+        )
+        val project = sampleProject.copy(
+            warningPoints = 1.0,
+            coveragePoints = 1.0,
+            coverageAnnotations =
+                listOf(GGradeCoverage(GCoverageScope.PACKAGE, false, "edu.rice.week2lists"))
+        )
+        val expected = Grader(GradingContext(buildDir = sampleBuildDir)).grade(project)
+
+        // The first time fills the cache, and the second time (with a fresh context, so
+        // the cache is opened again) reads everything back out of it.
+        assertEquals(expected, Grader(context).grade(project))
+        val cacheEntries = readdirPath(context.cacheDir).getOrFail()
+        assertTrue(cacheEntries.any { it.fileName.toString().startsWith("junit-") })
+        assertTrue(cacheEntries.any { it.fileName.toString().startsWith("jacoco-") })
+        val firstCache = context.artifactCache ?: fail()
+        assertEquals(0, firstCache.hits.get())
+        assertTrue(firstCache.misses.get() > 0)
+
+        val secondContext = context.copy()
+        assertEquals(expected, Grader(secondContext).grade(project))
+        val secondCache = secondContext.artifactCache ?: fail()
+        assertEquals(firstCache.misses.get(), secondCache.hits.get())
+        assertEquals(0, secondCache.misses.get())
+    }
+
+    @Test
+    fun cacheEvictsLeastRecentlyUsedEntries() {
+        val cacheDir = Files.createTempDirectory("cache")
+        val cache = ArtifactCache.open(cacheDir)
+        cache.store("old", ByteArray(600))
+        cache.store("new", ByteArray(600))
+        Files.setLastModifiedTime(cacheDir.resolve("old.json"), FileTime.fromMillis(0))
+
+        ArtifactCache.open(cacheDir, maxBytes = 1000)
+        assertNull(cache.load("old"))
+        assertEquals(600, cache.load("new")?.size)
+
+        // When the version changes, everything goes, except for a stray directory, which
+        // can't be deleted along with the entries, but mustn't stop us, either.
+        Files.createDirectories(cacheDir.resolve("junk/inside"))
+        Files.write(cacheDir.resolve("VERSION"), "0.0/0".toByteArray())
+        ArtifactCache.open(cacheDir)
+        assertNull(cache.load("new"))
+    }
+
+    @Test
+    fun rescoredSnapshotMatchesGrading() {
+        val outputDir = Files.createTempDirectory("autograder").toString()
+        val context = GradingContext(buildDir = sampleBuildDir, outputDir = outputDir)
+        assertTrue(context.writeSnapshot(context.snapshot()).isSuccess())
+        val snapshot = context.readSnapshot().getOrFail()
+
+        // If the snapshot can't be written (here, there's a directory in the way), we say so.
+        val blocked = context.copy(outputDir = "$outputDir/blocked")
+        Files.createDirectories(blocked.snapshotFile)
+        assertTrue(blocked.writeSnapshot(snapshot).isFailure())
+
+        val project = sampleProject.copy(
+            warningPoints = 1.0,
+            coveragePoints = 1.0,
+            coverageAnnotations =
+                listOf(GGradeCoverage(GCoverageScope.PACKAGE, false, "edu.rice.week2lists"))
+        )
+
+        // A mid-semester policy tweak: every test is now worth twice as much.
+        val tweaked = project.copy(
+            topics = project.topics.map { topic ->
+                topic.copy(tests = topic.tests.map { it.copy(points = 2 * it.points) })
+            }
+        )
+
+        listOf(sampleProject, project, tweaked).forEach {
+            assertEquals(grader.grade(it), snapshot.rescore(it))
+        }
+    }
+
+    @Test
+    fun gradeAllMatchesGradingEach() {
+        val coverageProject = sampleProject.copy(
+            name = "Coverage",
+            coveragePoints = 1.0,
+            coverageAnnotations =
+                listOf(GGradeCoverage(GCoverageScope.PACKAGE, false, "edu.rice.week2lists"))
+        )
+        val missingProject = sampleProject.copy(
+            name = "Missing",
+            topics = listOf(
+                GGradeTopic(
+                    "Missing", 1.0,
+                    listOf(GGradeTest(1.0, 0.0, "edu.rice.nothing.NoSuchTest", "missing"))
+                )
+            )
+        )
+        // This one's test class has a results file, but without any test cases in it.
+        val emptyClass = "edu.rice.empty.EmptyTest"
+        val emptyProject = missingProject.copy(
+            name = "Empty",
+            topics = listOf(
+                GGradeTopic("Empty", 1.0, listOf(GGradeTest(1.0, 0.0, emptyClass, "missing")))
+            )
+        )
+        val emptyResultsDir = Files.createTempDirectory("results")
+        emptyResultsDir.resolve(testResultsFileName(emptyClass)).writeFile(
+            """<?xml version="1.0" encoding="UTF-8"?>
+            |<testsuite name="$emptyClass" tests="0" skipped="0" failures="0" errors="0"
+            |  timestamp="2019-09-01T00:00:00" hostname="localhost" time="0.0">
+            |<properties/>
+            |</testsuite>
+            |""".trimMargin()
+        ).getOrFail()
+        val projects = listOf(sampleProject, coverageProject, missingProject, emptyProject)
+
+        listOf(false, true).forEach { gradedTestsOnly ->
+            val context =
+                GradingContext(buildDir = sampleBuildDir, gradedTestsOnly = gradedTestsOnly)
+            val grader = Grader(
+                context.copy(testResultsDirs = context.testResultsDirs + emptyResultsDir.toString())
+            )
+            assertEquals(projects.map { grader.grade(it) }, grader.gradeAll(projects))
+        }
+    }
+
+    @Test
+    fun gradeAllWithConflictingTimeoutsMatchesGradingEach() {
+        val project = scanEverything("edu.rice.autogradertest").getValue("TP3")
+        fun withTimeout(name: String, timeoutMillis: Long) = project.copy(
+            name = name,
+            topics = project.topics.map { topic ->
+                topic.copy(tests = topic.tests.map { it.copy(timeoutMillis = timeoutMillis) })
+            }
+        )
+        val projects = listOf(withTimeout("Slow", 60_000), withTimeout("Unlimited", 0))
+
+        val grader = Grader(GradingContext(runTests = true))
+        assertEquals(projects.map { grader.grade(it) }, grader.gradeAll(projects))
+    }
+
+    @Test
+    fun runTestsInProcessRecordsFactoryChildren() {
+        val plan = GradingPlan(scanEverything("edu.rice.autogradertest").getValue("TP3"))
+        val results = plan.unitTestResults(plan.runTests())
+
+        assertEquals(1, results.size)
+        assertTrue(results[0].passes)
+        val factory = results[0].deductions.filterIsInstance<UnitTestFactoryDeduction>().single()
+        assertEquals(3, factory.numChecked)
+        assertEquals(3, factory.numPassed)
+
+        // None of the sample project's test classes are on our classpath.
+        assertNull(GradingPlan(sampleProject).runTests())
+    }
+
+    @Test
+    fun runTestsEnforcesTimeouts() {
+        val plan = GradingPlan(scanEverything("edu.rice.autogradertest").getValue("TP4"))
+        assertTrue(plan.hasTimeouts)
+        assertEquals(100L, plan.timeoutMillis("edu.rice.autogradertest.TestProject4", "testSlow"))
+
+        val results = withSlowTests { plan.unitTestResults(plan.runTests()) }
+
+        val deductions = results.single().deductions
+        assertEquals(
+            mapOf("testQuick" to false, "testSlow" to true),
+            deductions.filterIsInstance<UnitTestDeduction>()
+                .associate { it.testName.substringAfterLast('.') to it.timedOut }
+        )
+        val factory = deductions.filterIsInstance<UnitTestFactoryDeduction>().single()
+        assertEquals(2, factory.numChecked)
+        assertEquals(1, factory.numPassed)
+        assertEquals(1, factory.numTimedOut)
+        assertEquals(2.0, results.single().points)
+    }
+
+    @Test
+    fun stuckTestsFailTheRunInProcess() {
+        // Nothing can stop TestProject5's spinning test, and we mustn't leave it running.
+        val plan = GradingPlan(scanEverything("edu.rice.autogradertest").getValue("TP5"))
+        assertThrows(IllegalStateException::class.java) { withSlowTests { plan.runTests() } }
+    }
+
+    @Test
+    fun stuckTestsAreAbandonedInTestWorkers() {
+        val tp5 = "edu.rice.autogradertest.TestProject5"
+        val plan = GradingPlan(scanEverything("edu.rice.autogradertest").getValue("TP5"))
+        val testClasses = codeSource(TestProject3::class.java)
+        val context = GradingContext(classesDir = testClasses, testClassesDir = testClasses)
+
+        TestWorkerPool(
+            1, timeoutMillis = 60_000, extraClasspath = jupiterClasspath(),
+            jvmArgs = listOf("-Dedu.rice.autogradertest.timeouts=true"),
+            logDir = Files.createTempDirectory("test-workers")
+        ).use { pool ->
+            val response = context.runOnWorker(pool, listOf(tp5), plan.testTimeoutsByName)
+
+            // The test after the spinning one still counts, but the spinning one is still
+            // going, so the worker is retired.
+            assertNull(response.error)
+            assertTrue(response.leaked)
+            assertEquals(
+                listOf(
+                    TestCaseCounts(tp5, "testAfterSpinning", 1, 0),
+                    TestCaseCounts(tp5, "testSpinning", 1, 1, 1)
+                ),
+                response.tests?.sortedBy { it.methodName }
+            )
+        }
+    }
+
+    @Test
+    fun failFastSkipsExhaustedTopics() {
+        val tp3 = "edu.rice.autogradertest.TestProject3"
+        val tp4 = "edu.rice.autogradertest.TestProject4"
+        val project = sampleProject.copy(
+            topics = listOf(
+                GGradeTopic(
+                    "Exhausted", 2.0,
+                    listOf(
+                        GGradeTest(2.0, 0.0, tp4, "testSlow", timeoutMillis = 100),
+                        GGradeTest(1.0, 0.0, tp4, "testQuick")
+                    )
+                ),
+                GGradeTopic(
+                    "Fine", 4.0,
+                    listOf(GGradeTest(4.0, 0.0, tp3, "testChoose"))
+                )
+            )
+        )
+        val plan = GradingPlan(project)
+        val results = withSlowTests { plan.unitTestResults(plan.runTests(failFast = true)) }
+
+        // Once testSlow times out, its topic has nothing left to lose, so testQuick never runs.
+        val exhausted = results[0].deductions.filterIsInstance<UnitTestDeduction>()
+        assertEquals(listOf(true, false), exhausted.map { it.timedOut })
+        assertEquals(listOf(false, true), exhausted.map { it.notRun })
+        assertEquals(0.0, results[0].points)
+        assertTrue(results[1].passes)
+    }
+
+    @Test
+    fun shardsBalanceHistoricalDurations() {
+        val durations = mapOf("A" to 5.0, "B" to 4.0, "C" to 3.0, "D" to 3.0, "E" to 3.0)
+        val shards = planShards(listOf("E", "D", "C", "B", "A", "F"), durations, 2)
+
+        // F has no history, so it's assumed to take the average time, 3.6 seconds.
+        assertEquals(
+            listOf(listOf("A", "C", "E"), listOf("B", "D", "F")),
+            shards.map { it.classNames }
+        )
+        assertEquals(11.0, shards[0].expectedSeconds, 1e-9)
+        assertEquals(10.6, shards[1].expectedSeconds, 1e-9)
+        assertEquals(3, planShards(listOf("A"), durations, 3).size)
+
+        val context = GradingContext(buildDir = sampleBuildDir)
+        assertTrue(context.testClassDurations().getValue("edu.rice.json.ParserTest") > 0.0)
+    }
+
+    @Test
+    fun shardDurationsUseTheNewestResults() {
+        fun results(timestamp: String, seconds: Double) =
+            Files.createTempDirectory("results").also {
+                Files.write(
+                    it.resolve("TEST-edu.rice.Slow.xml"),
+                    ("<testsuite name=\"edu.rice.Slow\" tests=\"1\" skipped=\"0\" " +
+                        "failures=\"0\" errors=\"0\" timestamp=\"$timestamp\" " +
+                        "hostname=\"localhost\" time=\"$seconds\">" +
+                        "<testcase name=\"slow\" classname=\"edu.rice.Slow\" " +
+                        "time=\"$seconds\"/></testsuite>").toByteArray()
+                )
+            }.toString()
+
+        // Last week's unsharded run took longer than this morning's shard.
+        val context = GradingContext(
+            testResultsDirs = listOf(
+                results("2019-03-25T09:00:00", 2.0),
+                results("2019-03-18T09:00:00", 5.0)
+            )
+        )
+        assertEquals(mapOf("edu.rice.Slow" to 2.0), context.testClassDurations())
+    }
+
+    @Test
+    fun shardedTestResultsAreMerged() {
+        // Split the sample test results in two, as if two test shards had written them.
+        val context = GradingContext(buildDir = sampleBuildDir)
+        val shardDirs = listOf("shard1", "shard2").map { Files.createTempDirectory(it) }
+        allTestResultsFiles(context).forEachIndexed { i, file ->
+            Files.copy(file, shardDirs[i % 2].resolve(file.fileName))
+        }
+
+        val sharded = context.copy(testResultsDirs = shardDirs.map { it.toString() })
+        assertEquals(grader.grade(sampleProject), Grader(sharded).grade(sampleProject))
+        assertEquals(
+            grader.grade(sampleProject),
+            Grader(sharded.copy(gradedTestsOnly = true)).grade(sampleProject)
+        )
+    }
+
+    @Test
+    fun testWorkerRunsRequestedTests() {
+        val tp3 = "edu.rice.autogradertest.TestProject3"
+        val testClasses = codeSource(TestProject3::class.java)
+
+        // Round trip the request through JSON, just as it would cross a worker's pipe.
+        val request = TestWorkerRequest(listOf(testClasses), listOf(tp3), testClasses)
+        val response = jacksonJsonMapper
+            .readValue<TestWorkerRequest>(jacksonJsonMapper.writeValueAsString(request))
+            .runHere()
+
+        assertNull(response.error)
+        assertFalse(response.leaked)
+        assertEquals(
+            listOf(
+                TestCaseCounts(tp3, "testChoose", 1, 0),
+                TestCaseCounts(tp3, "testFactorial", 3, 0)
+            ),
+            response.tests?.sortedBy { it.methodName }
+        )
+    }
+
+    @Test
+    fun testWorkerPoolRecyclesWorkers() {
+        val tp3 = "edu.rice.autogradertest.TestProject3"
+        val tp4 = "edu.rice.autogradertest.TestProject4"
+        val testClasses = codeSource(TestProject3::class.java)
+        val context = GradingContext(classesDir = testClasses, testClassesDir = testClasses)
+        val expected = listOf(
+            TestCaseCounts(tp3, "testChoose", 1, 0),
+            TestCaseCounts(tp3, "testFactorial", 3, 0)
+        )
+
+        // The workers only get JUnit Jupiter because we give it to them.
+        val jupiter = jupiterClasspath()
+        assertTrue(jupiter.none { it in workerClasspath })
+
+        val logDir = Files.createTempDirectory("test-workers")
+        TestWorkerPool(
+            1, maxUses = 2, timeoutMillis = 15_000, extraClasspath = jupiter,
+            jvmArgs = listOf("-Dedu.rice.autogradertest.timeouts=true"), logDir = logDir
+        ).use { pool ->
+            fun workersStarted() = Files.list(logDir).use { it.count() }
+
+            // The first worker is retired after its second submission.
+            repeat(2) {
+                val response = context.runOnWorker(pool, listOf(tp3), emptyMap())
+                assertNull(response.error)
+                assertEquals(expected, response.tests?.sortedBy { it.methodName })
+                assertEquals(listOf(tp3), response.testClasses)
+            }
+            assertEquals(2L, workersStarted())
+
+            // Without its own timeouts, TestProject4's slow tests outlast the pool's timeout,
+            // so that worker is replaced right away, and the next one carries on.
+            val stuck = context.runOnWorker(pool, listOf(tp4), emptyMap())
+            assertTrue(stuck.leaked)
+            assertNull(stuck.tests)
+            assertEquals(3L, workersStarted())
+
+            val response = context.runOnWorker(pool, listOf(tp3), emptyMap())
+            assertNull(response.error)
+            assertEquals(expected, response.tests?.sortedBy { it.methodName })
+            assertEquals(3L, workersStarted())
+        }
+    }
+
+    @Test
+    fun closingTheWorkerPoolStopsBusyWorkers() {
+        val tp4 = "edu.rice.autogradertest.TestProject4"
+        val plan = GradingPlan(scanEverything("edu.rice.autogradertest").getValue("TP4"))
+        val testClasses = codeSource(TestProject3::class.java)
+        val context = GradingContext(classesDir = testClasses, testClassesDir = testClasses)
+
+        val pool = TestWorkerPool(
+            1, timeoutMillis = 60_000, extraClasspath = jupiterClasspath(),
+            jvmArgs = listOf("-Dedu.rice.autogradertest.timeouts=true"),
+            logDir = Files.createTempDirectory("test-workers")
+        )
+        // TestProject4's timeouts keep it busy for a little while, but not too long.
+        val running = CompletableFuture.supplyAsync {
+            context.runOnWorker(pool, listOf(tp4), plan.testTimeoutsByName)
+        }
+        while (pool.idleWorkers > 0) Thread.sleep(10)
+        pool.close()
+
+        // The request still finishes, but its worker isn't kept around for another one.
+        assertNull(running.join().error)
+        assertEquals(0, pool.idleWorkers)
+    }
+
+    @Test
+    fun submissionClassesComeFromTheSubmission() {
+        // Our own class loader has the test project too, but the submission's copy wins,
+        // while the JUnit Platform is still shared with the launcher.
+        val urls = arrayOf(Paths.get(codeSource(TestProject3::class.java)).toUri().toURL())
+        SubmissionClassLoader(urls, javaClass.classLoader).use { loader ->
+            val tp3 = loader.loadClass(TestProject3::class.java.name)
+            assertTrue(tp3.classLoader === loader)
+            assertFalse(tp3 === TestProject3::class.java)
+
+            val engine = loader.loadClass("org.junit.platform.engine.TestEngine")
+            assertTrue(engine === Class.forName("org.junit.platform.engine.TestEngine"))
+        }
+    }
+
+    @Test
+    fun concurrentGradingIsConsistent() {
+        val expected = grader.grade(sampleProject)
+        val futures = (1..8).map { grader.gradeAsync(sampleProject) }
+        futures.forEach { assertEquals(expected, it.join()) }
+    }
+
+    private fun codeSource(c: Class<*>) =
+        Paths.get(c.protectionDomain.codeSource.location.toURI()).toString()
+
+    private fun jupiterClasspath() = listOf(
+        codeSource(Test::class.java),
+        codeSource(Class.forName("org.junit.jupiter.engine.JupiterTestEngine"))
+    )
+
+    // TestProject4 only runs when asked, since each of its slow tests takes a minute.
+    private fun <T> withSlowTests(block: () -> T): T {
+        val property = "edu.rice.autogradertest.timeouts"
+        System.setProperty(property, "true")
+        return try {
+            block()
+        } finally {
+            System.clearProperty(property)
+        }
+    }
+}
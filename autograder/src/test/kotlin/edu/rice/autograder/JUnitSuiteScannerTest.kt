@@ -6,7 +6,13 @@
 
 package edu.rice.autograder
 
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.util.Collections
+import javax.xml.stream.XMLStreamConstants
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
 import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Assertions.fail
 import org.junit.jupiter.api.Test
@@ -45,4 +51,94 @@ class JUnitSuiteScannerTest {
         val test1 = JTestCase("testObjects()[1]", "edu.rice.json.ParserTestPrivate", 0.0, null)
         assertTrue(test1.matches("edu.rice.json.ParserTestPrivate", "testObjects"))
     }
+
+    @Test
+    fun streamParserMatchesJackson() {
+        val files =
+            readResourceDir("comp215-build/test-results/test")
+                .fold({ emptyList<String>() }, { it.toList() })
+        files.forEach { file ->
+            val bytes = readResourceBytes(file).getOrFail()
+            val expected = junitSuiteParser(String(bytes))
+            val actual = junitSuiteStreamParser(ByteArrayInputStream(bytes))
+
+            assertEquals(expected, actual, "mismatch for $file")
+            assertEquals(
+                expected.tests?.map { it.failure?.stackTraceList },
+                actual.tests?.map { it.failure?.stackTraceList },
+                "stack trace mismatch for $file"
+            )
+        }
+    }
+
+    /** Generates [size] bytes of the character 'x', without ever holding them all in memory. */
+    private class RepeatingInputStream(private var size: Long) : InputStream() {
+        override fun read(): Int = if (size-- > 0) 'x'.toInt() else -1
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (size <= 0) return -1
+            val n = minOf(len.toLong(), size).toInt()
+            b.fill('x'.toByte(), off, off + n)
+            size -= n
+            return n
+        }
+    }
+
+    // A 32MB stack trace and a 64MB system-out, neither of which should end up in memory.
+    private fun hugeSuite(): InputStream {
+        val header = """<?xml version="1.0" encoding="UTF-8"?>
+            |<testsuite name="edu.rice.Big" tests="2" skipped="0" failures="1" errors="0" time="1.0">
+            |<properties/>
+            |<testcase name="quiet()" classname="edu.rice.Big" time="0.5"/>
+            |<testcase name="noisy()" classname="edu.rice.Big" time="0.5">
+            |<failure message="boom" type="java.lang.AssertionError">""".trimMargin()
+        val middle = """</failure>
+            |</testcase>
+            |<system-out><![CDATA[""".trimMargin()
+        val footer = """]]></system-out>
+            |<system-err><![CDATA[]]></system-err>
+            |</testsuite>""".trimMargin()
+
+        val streams = listOf(
+            ByteArrayInputStream(header.toByteArray()),
+            RepeatingInputStream(32L * 1024 * 1024),
+            ByteArrayInputStream(middle.toByteArray()),
+            RepeatingInputStream(64L * 1024 * 1024),
+            ByteArrayInputStream(footer.toByteArray())
+        )
+        return SequenceInputStream(Collections.enumeration(streams))
+    }
+
+    @Test
+    fun streamParserHandlesHugeOutput() {
+        val suite = junitSuiteStreamParser(hugeSuite())
+        val tests = suite.tests ?: fail()
+
+        assertEquals("edu.rice.Big", suite.className)
+        assertEquals(2, tests.size)
+        assertNull(tests[0].failure)
+        assertEquals("boom", tests[1].failure?.message)
+        assertEquals(MAX_STACK_TRACE_LENGTH, tests[1].failure?.stackTrace?.length)
+    }
+
+    @Test
+    fun streamReaderDeliversLongTextInPieces() {
+        // Our test JVM has plenty of heap, so rather than hoping a huge text doesn't fit, we
+        // check that the reader never has more than a couple of buffers' worth at once.
+        var totalLength = 0L
+        var longestText = 0
+        hugeSuite().withXmlStreamReader { reader ->
+            while (reader.hasNext()) {
+                when (reader.next()) {
+                    XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA -> {
+                        totalLength += reader.textLength
+                        longestText = maxOf(longestText, reader.textLength)
+                    }
+                }
+            }
+        }
+
+        assertTrue(totalLength >= 96L * 1024 * 1024)
+        assertTrue(longestText <= 2 * XML_INPUT_BUFFER_CHARS, "longest text: $longestText")
+    }
 }
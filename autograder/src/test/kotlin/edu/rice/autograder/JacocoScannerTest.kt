@@ -7,6 +7,19 @@
 package edu.rice.autograder
 
 import edu.rice.autograder.JacocoCounterType.INSTRUCTION
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Paths
+import org.jacoco.core.analysis.Analyzer
+import org.jacoco.core.analysis.CoverageBuilder
+import org.jacoco.core.data.ExecutionDataStore
+import org.jacoco.core.data.ExecutionDataWriter
+import org.jacoco.core.data.SessionInfoStore
+import org.jacoco.core.instr.Instrumenter
+import org.jacoco.core.runtime.LoggerRuntime
+import org.jacoco.core.runtime.RuntimeData
+import org.jacoco.report.DirectorySourceFileLocator
+import org.jacoco.report.xml.XMLFormatter
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.Assertions.assertNotEquals
@@ -90,6 +103,165 @@ class JacocoScannerTest {
         }
     }
 
+    @Test
+    fun streamParserMatchesJackson() {
+        val fileName = "src/test/resources/comp215-build/reports/jacoco/test/jacocoTestReport.xml"
+        val fullReport = jacocoParser(readFile(fileName).getOrFail()) ?: fail()
+        val coverages = listOf(
+            GGradeCoverage(GCoverageScope.PACKAGE, false, "edu.rice.week2lists"),
+            GGradeCoverage(GCoverageScope.CLASS, true, "edu.rice.week2lists.ObjectList"),
+            GGradeCoverage(GCoverageScope.CLASS, false, "edu.rice.week2lists.ObjectList.Empty")
+        )
+        val streamReport = Paths.get(fileName).readJacocoReport(coverages).getOrFail()
+
+        // only the classes under the specs survive, and with the same counters as before
+        assertTrue(streamReport.classesMap.keys.all { it.startsWith("edu.rice.week2lists.") })
+        assertTrue(streamReport.classesMap.size < fullReport.classesMap.size)
+        streamReport.classesMap.forEach { (name, jclass) ->
+            assertEquals(fullReport.classesMap[name]?.counters, jclass.counters)
+            assertEquals(null, jclass.methods)
+        }
+        assertEquals(
+            fullReport.matchingClassSpecs(coverages).sorted(),
+            streamReport.matchingClassSpecs(coverages).sorted()
+        )
+
+        val project = sampleProject.copy(
+            coveragePoints = 1.0,
+            coveragePercentage = 50.0,
+            coverageAnnotations = coverages
+        )
+        assertEquals(
+            fullReport.eval(project, "index.html"),
+            streamReport.eval(project, "index.html")
+        )
+    }
+
+    @Test
+    fun execAnalyzerMatchesXmlReport() {
+        // Our sample build has no execution data, and any we checked in would only match the
+        // class files it was recorded against, so we make our own: instrument Project3, run
+        // part of it, then write out both jacoco.exec and JaCoCo's own XML report from that.
+        val className = "edu.rice.autogradertest.Project3"
+        val resource = className.replace('.', '/') + ".class"
+        val original = javaClass.classLoader.getResourceAsStream(resource)?.use { it.readBytes() }
+            ?: fail()
+
+        val runtime = LoggerRuntime()
+        val data = RuntimeData()
+        runtime.startup(data)
+        val instrumented = Instrumenter(runtime).instrument(original, className)
+        val loader = object : ClassLoader(javaClass.classLoader) {
+            override fun loadClass(name: String, resolve: Boolean): Class<*> =
+                if (name != className) super.loadClass(name, resolve)
+                else findLoadedClass(name) ?: defineClass(name, instrumented, 0, instrumented.size)
+        }
+        loader.loadClass(className).getDeclaredMethod("factorial", Int::class.java).run {
+            isAccessible = true
+            invoke(null, 3)
+        }
+        val executionData = ExecutionDataStore()
+        val sessionInfos = SessionInfoStore()
+        data.collect(executionData, sessionInfos, false)
+        runtime.shutdown()
+
+        val dir = Files.createTempDirectory("jacoco")
+        val classesDir = dir.resolve("classes")
+        val classFile = classesDir.resolve(resource)
+        Files.createDirectories(classFile.parent)
+        Files.write(classFile, original)
+
+        val execFile = dir.resolve("jacoco.exec")
+        Files.newOutputStream(execFile).use {
+            val writer = ExecutionDataWriter(it)
+            sessionInfos.accept(writer)
+            executionData.accept(writer)
+        }
+
+        val xmlFile = dir.resolve("jacocoTestReport.xml")
+        val coverageBuilder = CoverageBuilder()
+        Analyzer(executionData, coverageBuilder).analyzeClass(original, className)
+        Files.newOutputStream(xmlFile).use {
+            val visitor = XMLFormatter().createVisitor(it)
+            visitor.visitInfo(sessionInfos.infos, executionData.contents)
+            visitor.visitBundle(
+                coverageBuilder.getBundle("Project3"),
+                DirectorySourceFileLocator(File("src/test/java"), "UTF-8", 4)
+            )
+            visitor.visitEnd()
+        }
+
+        val fromExec = jacocoExecAnalyzer(listOf(execFile), classesDir, null)
+        val fromXml = xmlFile.readJacocoReport(null).getOrFail()
+        assertEquals(fromXml.packages, fromExec.packages)
+
+        // choose() never ran, so this is a real mix of covered and missed.
+        val counters = fromExec.classesMap[className]?.counters ?: fail()
+        assertTrue(counters.any { it.covered > 0 })
+        assertTrue(counters.any { it.missed > 0 })
+    }
+
+    @Test
+    fun coverageSpecTriePrecedence() {
+        val excludeWeek2 = GGradeCoverage(GCoverageScope.PACKAGE, true, "edu.rice.week2")
+        val includeWeek2Sub = GGradeCoverage(GCoverageScope.PACKAGE, false, "edu.rice.week2.sub")
+        val includeList = GGradeCoverage(GCoverageScope.CLASS, false, "edu.rice.week2.List")
+        val excludeListEmpty =
+            GGradeCoverage(GCoverageScope.CLASS, true, "edu.rice.week2.List.Empty")
+        val includeListEmpty =
+            GGradeCoverage(GCoverageScope.CLASS, false, "edu.rice.week2.List.Empty")
+
+        // the class spec wins over the deeper package spec, regardless of order
+        val trie = CoverageSpecTrie(
+            listOf(includeList, excludeListEmpty, includeWeek2Sub, excludeWeek2)
+        )
+
+        assertEquals(excludeWeek2, trie.matchingSpec("edu.rice.week2.Other"))
+        assertEquals(includeWeek2Sub, trie.matchingSpec("edu.rice.week2.sub.Thing"))
+        assertEquals(includeList, trie.matchingSpec("edu.rice.week2.List"))
+        assertEquals(includeList, trie.matchingSpec("edu.rice.week2.List.Cons"))
+        assertEquals(excludeListEmpty, trie.matchingSpec("edu.rice.week2.List.Empty"))
+        assertEquals(null, trie.matchingSpec("edu.rice.week2x.List"))
+        assertEquals(null, trie.matchingSpec("edu.rice"))
+
+        assertFalse(trie.isIncluded("edu.rice.week2.Other"))
+        assertTrue(trie.isIncluded("edu.rice.week2.List.Cons"))
+        assertFalse(trie.isIncluded("edu.rice.week2.List.Empty"))
+        assertFalse(trie.isIncluded("edu.rice.week3.Other"))
+
+        // for duplicate names, the last one wins
+        val dupTrie = CoverageSpecTrie(listOf(excludeListEmpty, includeListEmpty))
+        assertTrue(dupTrie.isIncluded("edu.rice.week2.List.Empty"))
+    }
+
+    @Test
+    fun anonOuterClassNameAgreesWithAnonInnerClassOf() {
+        val names = listOf(
+            "edu/rice/rpn/RpnCalc",
+            "edu/rice/rpn/RpnCalc2",
+            "edu/rice/rpn/RpnCalc\$1",
+            "edu/rice/rpn/RpnCalc2\$1",
+            "edu/rice/rpn/RpnCalc\$1\$2\$1",
+            "edu/rice/rpn/RpnCalc\$StackVisitor",
+            "edu/rice/rpn/RpnCalc\$StackVisitor\$1",
+            "edu/rice/rpn/RpnCalc\$1\$StackVisitor",
+            "edu/rice/rpn/RpnCalc\$1\$StackVisitor\$3"
+        )
+
+        // eval only groups anonymous classes under regular (non-anonymous) classes
+        val regularNames = names.filter { !it.isAnonymousInnerClass() }
+
+        names.forEach { inner ->
+            regularNames.forEach { outer ->
+                assertEquals(
+                    inner isAnonymousInnerClassOf outer,
+                    inner.isAnonymousInnerClass() && inner.anonymousOuterClassName() == outer,
+                    "inner: $inner, outer: $outer"
+                )
+            }
+        }
+    }
+
     @Test
     fun anonInnerClassRegexWorks() {
         assertFalse("edu/rice/rpn/RpnCalc".isAnonymousInnerClass())
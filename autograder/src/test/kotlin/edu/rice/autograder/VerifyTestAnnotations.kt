@@ -6,8 +6,13 @@
 
 package edu.rice.autograder
 
+import com.fasterxml.jackson.module.kotlin.readValue
+import java.net.URLClassLoader
+import java.nio.file.Files
+import java.nio.file.Path
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Assertions.fail
 import org.junit.jupiter.api.DynamicTest
 import org.junit.jupiter.api.DynamicTest.dynamicTest
 import org.junit.jupiter.api.Test
@@ -80,4 +85,78 @@ class VerifyTestAnnotations {
             assertEquals(project, yamlImporter(project.yamlExporter()).getOrFail(), name)
         }
     }
+
+    @Test
+    fun compiledPolicyImportEquality() {
+        result.forEach { (name, project) ->
+            val compiled = project.compilePolicy()
+            assertTrue(compiled.isCompiledPolicy())
+            assertEquals(project, compiledPolicyImporter(compiled).getOrFail(), name)
+        }
+    }
+
+    @Test
+    fun loadPolicyDetectsFormat() {
+        val dir = Files.createTempDirectory("autograder")
+        result.forEach { (name, project) ->
+            val yamlFile = dir.resolve("$name.yml")
+            val compiledFile = dir.resolve("$name.policy")
+            yamlFile.writeFile(project.yamlExporter())
+            Files.write(compiledFile, project.compilePolicy())
+
+            assertEquals(project, loadPolicy(yamlFile.toString()).getOrFail(), name)
+            assertEquals(project, loadPolicy(compiledFile.toString()).getOrFail(), name)
+        }
+    }
+
+    @Test
+    fun annotationIndexMatchesClassGraph() {
+        // Our build runs the annotation processor over the test classes, so the index had
+        // better be there, cover the whole package, and agree with ClassGraph.
+        val pkg = "edu.rice.autogradertest"
+        val indexed = indexedAnnotations(pkg)
+        assertTrue(indexed.isNotEmpty())
+        assertEquals(emptyList<Path>(), unindexedClassDirs(pkg))
+        assertEquals(classGraphAnnotations(pkg).toGradeProjects(), indexed.toGradeProjects())
+        assertEquals(result, scanEverything(pkg, useIndex = false))
+    }
+
+    @Test
+    fun partialAnnotationIndexIsNotTrusted() {
+        // A directory of classes in the same package, but compiled without the processor.
+        val pkg = "edu.rice.autogradertest"
+        val resource = "edu/rice/autogradertest/Project3.class"
+        val dir = Files.createTempDirectory("unindexed")
+        val classFile = dir.resolve(resource)
+        Files.createDirectories(classFile.parent)
+        javaClass.classLoader.getResourceAsStream(resource)?.use { Files.copy(it, classFile) }
+            ?: fail()
+
+        val loader = URLClassLoader(arrayOf(dir.toUri().toURL()), javaClass.classLoader)
+        withContextClassLoader(loader) {
+            assertEquals(
+                listOf(dir.toRealPath()),
+                unindexedClassDirs(pkg).map { it.toRealPath() }
+            )
+            assertEquals(result, scanEverything(pkg))
+        }
+    }
+
+    @Test
+    fun scanIndexFileIsReusedUntilClassesChange() {
+        val scanIndexFile = Files.createTempDirectory("autograder").resolve(SCAN_INDEX_FILE)
+        val pkg = "edu.rice.autogradertest"
+
+        // The first scan writes the file, and the second one should just read it back.
+        assertEquals(result, scanEverything(pkg, false, scanIndexFile))
+        assertTrue(Files.exists(scanIndexFile))
+        assertEquals(result, scanEverything(pkg, false, scanIndexFile))
+
+        // If the fingerprint doesn't match, we have to scan again (and rewrite the file).
+        val stale = ScanIndex(SCAN_INDEX_FORMAT, "stale", emptyList())
+        scanIndexFile.writeFile(jacksonJsonMapper.writeValueAsString(stale))
+        assertEquals(result, scanEverything(pkg, false, scanIndexFile))
+        val rewritten = jacksonJsonMapper.readValue<ScanIndex>(scanIndexFile.toFile())
+        assertEquals(classFileFingerprint(pkg), rewritten.fingerprint)
+    }
 }
@@ -0,0 +1,217 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder.gradle
+
+import groovy.json.JsonSlurper
+import java.io.File
+import javax.inject.Inject
+import org.gradle.api.DefaultTask
+import org.gradle.api.GradleException
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.FileCollection
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Classpath
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Internal
+import org.gradle.api.tasks.OutputFiles
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+import org.gradle.workers.WorkAction
+import org.gradle.workers.WorkParameters
+import org.gradle.workers.WorkerExecutor
+
+// Forking a JVM to run the autograder means paying for JVM startup, class loading, and JIT
+// warmup at the end of every single build. Instead, we run it inside the Gradle daemon,
+// using the Worker API. The autograder and its dependencies (Jackson, Arrow, a Kotlin
+// standard library that's probably not the one Gradle uses, etc.) are loaded into an
+// isolated class loader, so they can't conflict with Gradle's own classes or with other
+// plugins. Gradle keeps that class loader around for as long as the classpath doesn't
+// change, so on a warm daemon, everything is already loaded and compiled.
+
+/** The name of the autograder's in-process entry point; see [AutoGraderWorkAction]. */
+private const val ENTRY_CLASS = "edu.rice.autograder.AutoGraderKt"
+private const val ENTRY_METHOD = "runAutoGrader"
+
+/** What an [AutoGraderWorkAction] needs: the autograder's command-line arguments. */
+interface AutoGraderParameters : WorkParameters {
+    val args: ListProperty<String>
+    val ignoreFailures: Property<Boolean>
+}
+
+/**
+ * Runs the autograder, in the isolated class loader. We find the autograder by name,
+ * rather than compiling against it, so the plugin isn't tied to any one version of it.
+ */
+abstract class AutoGraderWorkAction : WorkAction<AutoGraderParameters> {
+    override fun execute() {
+        val args = parameters.args.get()
+        val passing = Class.forName(ENTRY_CLASS, true, javaClass.classLoader)
+            .getMethod(ENTRY_METHOD, Array<String>::class.java)
+            .invoke(null, args.toTypedArray()) as Boolean
+
+        if (!passing && !parameters.ignoreFailures.get()) {
+            throw GradleException("RiceChecks ${args.last()} did not pass")
+        }
+    }
+}
+
+/**
+ * Runs the autograder in an isolated class loader, with the given [classpath] and [args],
+ * failing if the autograder's task didn't pass, unless [ignoreFailures] is set.
+ */
+internal fun WorkerExecutor.submitAutoGrader(
+    classpath: FileCollection,
+    args: List<String>,
+    ignoreFailures: Boolean
+) = classLoaderIsolation { it.classpath.from(classpath) }
+    .submit(AutoGraderWorkAction::class.java) {
+        it.args.set(args)
+        it.ignoreFailures.set(ignoreFailures)
+    }
+
+/**
+ * Runs the autograder with the given [args], loading it from the [autograderClasspath].
+ * These tasks declare no outputs of their own, so unless some are added, they always run.
+ */
+open class AutoGraderTask @Inject constructor(
+    private val workerExecutor: WorkerExecutor
+) : DefaultTask() {
+    /** Where to find the autograder, its dependencies, and the code being graded. */
+    @get:Classpath
+    val autograderClasspath: ConfigurableFileCollection = project.objects.fileCollection()
+
+    /** The autograder's command-line arguments. */
+    @get:Input
+    val args: ListProperty<String> = project.objects.listProperty(String::class.java)
+
+    /** If set, the task doesn't fail when the autograder finds something wrong. */
+    @get:Input
+    val ignoreFailures: Property<Boolean> =
+        project.objects.property(Boolean::class.javaObjectType)
+
+    @TaskAction
+    fun runAutoGrader() =
+        workerExecutor.submitAutoGrader(autograderClasspath, args.get(), ignoreFailures.get())
+}
+
+/** The report files written by [GradeTask], in its output directory. */
+private val REPORT_FILES = listOf("report.json", "report.yml", "report.txt")
+
+/**
+ * Grades the project and writes the reports, without printing anything. Every artifact the
+ * autograder reads is declared as an input, and the reports are the outputs, so when nothing
+ * has changed, Gradle skips grading entirely, or takes the reports from its build cache.
+ * That means this task has to succeed even when the grade isn't passing, or the reports
+ * wouldn't be cached; [AutoGraderReportTask] prints them and fails the build, if need be.
+ */
+@CacheableTask
+open class GradeTask @Inject constructor(
+    private val workerExecutor: WorkerExecutor
+) : DefaultTask() {
+    /** Where to find the autograder and its dependencies. */
+    @get:Classpath
+    val autograderClasspath: ConfigurableFileCollection = project.objects.fileCollection()
+
+    /** The name of the project to grade. */
+    @get:Input
+    val gradeProject: Property<String> = project.objects.property(String::class.java)
+
+    /** The grading policy, in YAML or compiled form. */
+    @get:InputFile
+    @get:PathSensitive(PathSensitivity.NONE)
+    val policyFile = project.objects.fileProperty()
+
+    /** The JUnit XML results directories, more than one if the tests were sharded. */
+    @get:InputFiles
+    @get:PathSensitive(PathSensitivity.RELATIVE)
+    val testResults: ConfigurableFileCollection = project.objects.fileCollection()
+
+    /** The CheckStyle reports, one per source set. */
+    @get:InputFiles
+    @get:PathSensitive(PathSensitivity.RELATIVE)
+    val checkStyleReports: ConfigurableFileCollection = project.objects.fileCollection()
+
+    /** The state files written by google-java-format's verify task. */
+    @get:InputFiles
+    @get:PathSensitive(PathSensitivity.RELATIVE)
+    val googleJavaFormatState: ConfigurableFileCollection = project.objects.fileCollection()
+
+    /** The Java compiler's log; see [CompilerLogTask]. */
+    @get:InputFiles
+    @get:PathSensitive(PathSensitivity.NONE)
+    val compilerLog: ConfigurableFileCollection = project.objects.fileCollection()
+
+    /** The JaCoCo XML report. */
+    @get:InputFiles
+    @get:PathSensitive(PathSensitivity.NONE)
+    val jacocoReport: ConfigurableFileCollection = project.objects.fileCollection()
+
+    /**
+     * The build directory, from which the autograder finds all of the above. It's not an
+     * input in its own right, since the autograder only reads the files we've listed.
+     */
+    @get:Internal
+    val buildDirectory = project.objects.directoryProperty()
+
+    /** Where the reports are written. */
+    @get:Internal
+    val outputDirectory = project.objects.directoryProperty()
+
+    /**
+     * The reports, by name. Gradle can only cache outputs it can tell apart, and it can't
+     * cache a task whose outputs are a plain [FileCollection].
+     */
+    @get:OutputFiles
+    val reports: Map<String, File>
+        get() = REPORT_FILES.associateWith { outputDirectory.file(it).get().asFile }
+
+    @TaskAction
+    fun grade() =
+        workerExecutor.submitAutoGrader(
+            autograderClasspath,
+            listOf(
+                "--build-dir", buildDirectory.get().asFile.absolutePath,
+                "--output-dir", outputDirectory.get().asFile.absolutePath,
+                "--project", gradeProject.get(),
+                "--config", policyFile.get().asFile.absolutePath
+            ) + testResults.files.flatMap { listOf("--test-results-dir", it.absolutePath) } +
+                listOf("--quiet", "grade"),
+            ignoreFailures = true
+        )
+}
+
+/**
+ * Prints the report written by [GradeTask] and fails unless every part of it passed (or
+ * [ignoreFailures] is set). This has no outputs, so it always runs, even when grading
+ * itself was skipped, so students always see their report.
+ */
+open class AutoGraderReportTask : DefaultTask() {
+    /** Where [GradeTask] wrote its reports. */
+    @get:Internal
+    val reportDirectory = project.objects.directoryProperty()
+
+    /** If set, the task doesn't fail when the autograder finds something wrong. */
+    @get:Input
+    val ignoreFailures: Property<Boolean> =
+        project.objects.property(Boolean::class.javaObjectType)
+
+    @TaskAction
+    fun printReport() {
+        val directory = reportDirectory.get().asFile
+        logger.quiet(directory.resolve("report.txt").readText().trimEnd())
+
+        val report = JsonSlurper().parse(directory.resolve("report.json")) as Map<*, *>
+        if (report["allPassing"] != true && !ignoreFailures.get()) {
+            throw GradleException("RiceChecks grade did not pass")
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder.gradle
+
+import org.gradle.api.Action
+import org.gradle.api.DefaultTask
+import org.gradle.api.Task
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.file.RegularFile
+import org.gradle.api.logging.StandardOutputListener
+import org.gradle.api.provider.Provider
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+
+// The autograder wants to see the Java compiler's warnings, which Gradle only prints to
+// the console. We used to start a fresh log file before every build and have every compile
+// task append to it, but when compilation was up to date, the compiler didn't run and the
+// log was left empty, so the warnings vanished. Instead, each compile task now has its own
+// log, declared as one of its outputs, so the log is kept (or restored from the build
+// cache) right along with the class files it describes. The logs are then concatenated
+// into the one file the autograder reads. That only holds if each compile that runs sees
+// every source file: an incremental compile only reports the warnings of the files it
+// recompiled, and starting the log afresh would throw the rest away, so by default the
+// plugin turns incremental compilation off (see RiceChecksExtension.completeCompilerLog).
+// That costs a full recompile each time any source changes, which projects that don't
+// grade compiler warnings can avoid by turning it back on.
+
+/** Starts a fresh log for the compile task it's attached to and captures its output. */
+internal class CaptureCompilerLog(private val logFile: Provider<RegularFile>) : Action<Task> {
+    override fun execute(task: Task) {
+        val log = logFile.get().asFile
+        log.parentFile.mkdirs()
+        log.writeText("")
+
+        val listener = StandardOutputListener { log.appendText(it.toString()) }
+        task.logging.addStandardOutputListener(listener)
+        task.logging.addStandardErrorListener(listener)
+    }
+}
+
+/** Concatenates the compile tasks' logs (see [CaptureCompilerLog]) into one [compilerLog]. */
+@CacheableTask
+open class CompilerLogTask : DefaultTask() {
+    /** The log of each compile task. */
+    @get:InputFiles
+    @get:PathSensitive(PathSensitivity.NAME_ONLY)
+    val compileTaskLogs: ConfigurableFileCollection = project.objects.fileCollection()
+
+    /** Where the concatenated log is written. */
+    @get:OutputFile
+    val compilerLog = project.objects.fileProperty()
+
+    @TaskAction
+    fun concatenate() {
+        compilerLog.get().asFile.writeText(
+            compileTaskLogs.files
+                .sortedBy { it.name }
+                .filter { it.exists() }
+                .joinToString("") { it.readText() }
+        )
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder.gradle
+
+import java.io.File
+import org.gradle.api.Plugin
+import org.gradle.api.Project
+import org.gradle.api.model.ObjectFactory
+import org.gradle.api.plugins.JavaPlugin
+import org.gradle.api.plugins.JavaPluginConvention
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.compile.JavaCompile
+import org.gradle.api.tasks.testing.Test
+
+/**
+ * Everything the RiceChecks plugin needs to know about a project, configured in its
+ * `build.gradle` like so:
+ *
+ * ```
+ * ricechecks {
+ *     gradeProject = "RPN"
+ *     gradePackage = "edu.rice.rpn"
+ *     gradeConfig = "config/grade.yml"
+ * }
+ * ```
+ */
+open class RiceChecksExtension(objects: ObjectFactory) {
+    /** The name of the project to grade, as given in its annotations. */
+    val gradeProject: Property<String> = objects.property(String::class.java)
+
+    /** The Java package where the grading annotations are found. */
+    val gradePackage: Property<String> = objects.property(String::class.java)
+
+    /** The YAML policy file, relative to the project directory. */
+    val gradeConfig: Property<String> =
+        objects.property(String::class.java).convention("config/grade.yml")
+
+    /**
+     * If set, the test task only runs the tests named in the policy, skipping every test
+     * that doesn't count toward the grade.
+     */
+    val gradedTestsOnly: Property<Boolean> =
+        objects.property(Boolean::class.javaObjectType).convention(false)
+
+    /**
+     * If more than zero, the graded test classes are split into this many shards, each run
+     * by its own test task, in its own JVM, at the same time (see [registerTestShards]).
+     */
+    val testShards: Property<Int> =
+        objects.property(Int::class.javaObjectType).convention(0)
+
+    /**
+     * If set (the default), Java compilation isn't incremental, so the compiler log has the
+     * warnings of every source file, not just those that were recompiled (see
+     * [CaptureCompilerLog]). Every compile then recompiles everything, so if the policy
+     * doesn't grade `useJavacWarnings`, turn this off to get incremental compilation back.
+     */
+    val completeCompilerLog: Property<Boolean> =
+        objects.property(Boolean::class.javaObjectType).convention(true)
+
+    /** If set, the build doesn't fail when the autograder finds something wrong. */
+    val ignoreFailures: Property<Boolean> =
+        objects.property(Boolean::class.javaObjectType).convention(false)
+}
+
+// The autograder reads the artifacts written by all of these, so it has to run after
+// them. Any that a project doesn't have are simply skipped.
+private val GRADE_INPUT_TASKS = setOf(
+    "classes", "jacocoTestCoverageVerification", "jacocoTestReport",
+    "autograderVerifyGoogleJavaFormat", "checkstyleMain", "checkstyleTest", "test",
+    "autograderCompilerLog"
+)
+
+/**
+ * The `edu.rice.ricechecks` plugin registers the `autograder`, `autograderDebugAnnotations`,
+ * `autograderWriteConfig`, and `autograderCompilePolicy` tasks, each of which runs the
+ * corresponding autograder task inside the Gradle daemon (see [AutoGraderTask]), rather
+ * than forking a new JVM. Grading itself is done by `autograderGrade` (see [GradeTask]),
+ * which can be skipped when nothing has changed, after which `autograder` prints the report.
+ * The plugin also captures the Java compiler's output (see [CompilerLogTask]), and can limit
+ * the test task to the graded tests (see [ApplyGradedTestFilter]) or split them across
+ * several test tasks (see [registerTestShards]). To keep the compiler's output complete, it
+ * turns off incremental Java compilation, so any change recompiles every source file, unless
+ * [RiceChecksExtension.completeCompilerLog] is turned off.
+ *
+ * The autograder itself comes from the project's own classpath, or from the `ricechecks`
+ * configuration, so the plugin works with whichever version of RiceChecks the project uses.
+ */
+class RiceChecksPlugin : Plugin<Project> {
+    override fun apply(project: Project) {
+        project.pluginManager.apply(JavaPlugin::class.java)
+
+        val extension = project.extensions
+            .create("ricechecks", RiceChecksExtension::class.java, project.objects)
+        val ricechecks = project.configurations.maybeCreate("ricechecks")
+        val sourceSets = project.convention.getPlugin(JavaPluginConvention::class.java).sourceSets
+        val mainClasspath = sourceSets.getByName("main").runtimeClasspath
+        val testClasspath = sourceSets.getByName("test").runtimeClasspath
+
+        // Tasks that only read the policy and the build's reports don't need the project's
+        // own classes, just its libraries, one of which is the autograder. Leaving the
+        // classes out means recompiling doesn't change the classpath, so the daemon can
+        // keep reusing the same isolated class loader.
+        val libraryClasspath = project.configurations
+            .getByName(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME)
+
+        // The build directory might be changed after we're applied, so we only look
+        // at it when the arguments are needed. The daemon's working directory isn't the
+        // project directory, so every path we pass along has to be absolute.
+        fun commonArgs() = listOf(
+            "--build-dir", project.buildDir.absolutePath,
+            "--output-dir", File(project.buildDir, "autograder").absolutePath
+        )
+
+        fun configFile() = project.file(extension.gradeConfig.get()).absolutePath
+
+        fun register(name: String, description: String, args: () -> List<String>) =
+            project.tasks.register(name, AutoGraderTask::class.java) { task ->
+                task.group = "verification"
+                task.description = description
+                task.args.set(project.provider { commonArgs() + args() })
+                task.ignoreFailures.set(extension.ignoreFailures)
+            }
+
+        val testFilter = project.layout.buildDirectory.file("autograder/graded-tests.txt")
+        val writeTestFilter = register(
+            "autograderTestFilter",
+            "Writes the names of the graded tests, so the test task can run only those."
+        ) {
+            listOf(
+                "--project", extension.gradeProject.get(),
+                "--config", configFile(),
+                "--test-filter", testFilter.get().asFile.absolutePath,
+                "--quiet",
+                "writeTestFilter"
+            )
+        }
+        writeTestFilter.configure { task ->
+            task.autograderClasspath.from(ricechecks, libraryClasspath)
+            task.inputs.file(project.provider { configFile() }).withPropertyName("policyFile")
+            task.outputs.file(testFilter).withPropertyName("testFilter")
+        }
+
+        project.tasks.named("test", Test::class.java).configure { task ->
+            val gradedTestsOnly = extension.gradedTestsOnly
+            task.dependsOn(
+                project.provider {
+                    if (gradedTestsOnly.get()) listOf(writeTestFilter) else emptyList()
+                }
+            )
+            task.inputs.files(
+                project.provider { if (gradedTestsOnly.get()) listOf(testFilter) else emptyList() }
+            ).withPropertyName("gradedTestFilter")
+            task.doFirst(ApplyGradedTestFilter(gradedTestsOnly, testFilter))
+        }
+
+        val shardDir = project.layout.buildDirectory.dir("autograder/shards")
+        fun shardResultsDirs() = (1..extension.testShards.get()).map {
+            File(project.buildDir, "test-results/testShard$it")
+        }
+        val writeShards = register(
+            "autograderTestShards",
+            "Splits the graded test classes into balanced shards, one per test task."
+        ) {
+            // Last time's results, from the shards or from the plain test task, tell us
+            // how long each class takes.
+            val history = shardResultsDirs() + File(project.buildDir, "test-results/test")
+            listOf(
+                "--project", extension.gradeProject.get(),
+                "--config", configFile(),
+                "--shards", extension.testShards.get().toString(),
+                "--shard-dir", shardDir.get().asFile.absolutePath
+            ) + history.flatMap { listOf("--test-results-dir", it.absolutePath) } +
+                listOf("--quiet", "writeShards")
+        }
+        writeShards.configure { task ->
+            task.autograderClasspath.from(ricechecks, libraryClasspath)
+            task.outputs.dir(shardDir).withPropertyName("shardDir")
+            task.outputs.upToDateWhen { false }
+        }
+
+        project.tasks.withType(JavaCompile::class.java).configureEach { task ->
+            val log = project.layout.buildDirectory.file("logs/${task.name}.log")
+            task.outputs.file(log).withPropertyName("compilerLog")
+            task.doFirst(CaptureCompilerLog(log))
+        }
+
+        project.tasks.register("autograderCompilerLog", CompilerLogTask::class.java) { task ->
+            task.description = "Gathers the Java compiler's output for the autograder."
+            task.dependsOn(project.tasks.withType(JavaCompile::class.java))
+            task.compileTaskLogs.from(
+                project.provider {
+                    project.tasks.withType(JavaCompile::class.java).map {
+                        File(project.buildDir, "logs/${it.name}.log")
+                    }
+                }
+            )
+            task.compilerLog.set(project.layout.buildDirectory.file("logs/compile.log"))
+        }
+
+        // These mirror the defaults of the autograder's GradingContext.
+        val grade = project.tasks.register("autograderGrade", GradeTask::class.java) { task ->
+            task.description = "Grades the project against its policy, writing the reports."
+            task.dependsOn(project.tasks.matching { it.name in GRADE_INPUT_TASKS })
+            task.autograderClasspath.from(ricechecks, libraryClasspath)
+            task.gradeProject.set(extension.gradeProject)
+            task.policyFile.set(project.layout.file(project.provider { File(configFile()) }))
+
+            val buildDir = project.layout.buildDirectory
+            task.buildDirectory.set(buildDir)
+            task.outputDirectory.set(buildDir.dir("autograder"))
+            task.testResults.from(
+                project.provider {
+                    if (extension.testShards.get() > 0) shardResultsDirs()
+                    else listOf(File(project.buildDir, "test-results/test"))
+                }
+            )
+            task.checkStyleReports.from(buildDir.dir("reports/checkstyle"))
+            task.googleJavaFormatState.from(buildDir.dir("google-java-format"))
+            task.compilerLog.from(buildDir.file("logs/compile.log"))
+            task.jacocoReport.from(buildDir.file("reports/jacoco/test/jacocoTestReport.xml"))
+        }
+
+        project.tasks.register("autograder", AutoGraderReportTask::class.java) { task ->
+            task.group = "verification"
+            task.description = "Grades the project against its policy and prints the report."
+            task.dependsOn(grade)
+            task.reportDirectory.set(grade.flatMap { it.outputDirectory })
+            task.ignoreFailures.set(extension.ignoreFailures)
+        }
+
+        // How many shards we need, and whether compilation can be incremental, aren't known
+        // until the project has configured us.
+        project.afterEvaluate {
+            if (extension.completeCompilerLog.get()) {
+                project.tasks.withType(JavaCompile::class.java).configureEach {
+                    it.options.isIncremental = false
+                }
+            }
+            val numShards = extension.testShards.get()
+            if (numShards > 0) project.registerTestShards(numShards, shardDir, writeShards)
+        }
+
+        register(
+            "autograderDebugAnnotations",
+            "Prints the policy found in the project's grading annotations."
+        ) {
+            listOf(
+                "--package", extension.gradePackage.get(),
+                "--project", extension.gradeProject.get(),
+                "debugAnnotations"
+            )
+        }.configure { task ->
+            task.dependsOn("testClasses")
+            task.autograderClasspath.from(ricechecks, mainClasspath, testClasspath)
+        }
+
+        register(
+            "autograderWriteConfig",
+            "Writes the policy found in the project's grading annotations to its config file."
+        ) {
+            listOf(
+                "--package", extension.gradePackage.get(),
+                "--project", extension.gradeProject.get(),
+                "--config", configFile(),
+                "writeConfig"
+            )
+        }.configure { task ->
+            task.dependsOn("testClasses")
+            task.autograderClasspath.from(ricechecks, mainClasspath, testClasspath)
+        }
+
+        register(
+            "autograderCompilePolicy",
+            "Compiles the project's config file to the autograder's binary policy format."
+        ) {
+            listOf(
+                "--project", extension.gradeProject.get(),
+                "--config", configFile(),
+                "compilePolicy"
+            )
+        }.configure { task ->
+            task.autograderClasspath.from(ricechecks, libraryClasspath)
+        }
+    }
+}
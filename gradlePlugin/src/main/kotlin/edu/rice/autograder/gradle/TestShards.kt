@@ -0,0 +1,106 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder.gradle
+
+import org.gradle.api.Action
+import org.gradle.api.Project
+import org.gradle.api.Task
+import org.gradle.api.file.Directory
+import org.gradle.api.file.RegularFile
+import org.gradle.api.provider.Provider
+import org.gradle.api.tasks.StopExecutionException
+import org.gradle.api.tasks.TaskProvider
+import org.gradle.api.tasks.testing.Test
+import org.gradle.testing.jacoco.plugins.JacocoTaskExtension
+import org.gradle.testing.jacoco.tasks.JacocoReportBase
+
+// With testShards set, the graded test classes are split across that many test tasks,
+// testShard1, testShard2, etc., each with its own JVM, which Gradle runs in parallel
+// (given --parallel or org.gradle.parallel, and enough workers). The autograder's
+// writeShards task decides which classes go where, balancing them by how long they took
+// last time. Each shard writes its own test results directory, and its own JaCoCo
+// execution data, all of which jacocoTestReport and the autograder merge back together.
+// The ordinary test task then does nothing but run the shards.
+
+/** The JaCoCo plugin's tasks that read the test task's execution data. */
+private val JACOCO_TEST_TASKS = setOf("jacocoTestReport", "jacocoTestCoverageVerification")
+
+/**
+ * Limits the test task it's attached to to the test classes listed in the [shardFile].
+ * If the shard is empty (there are more shards than graded test classes), the task has
+ * nothing to do, rather than running every test. Either way, the shard's results and
+ * coverage from last time are deleted first, since the autograder and JaCoCo read
+ * whatever they find, and a shard that doesn't run wouldn't otherwise replace them.
+ */
+internal class ApplyTestShard(private val shardFile: Provider<RegularFile>) : Action<Task> {
+    override fun execute(task: Task) {
+        val test = task as Test
+        test.reports.junitXml.destination.deleteRecursively()
+        test.binResultsDir.deleteRecursively()
+        test.extensions.findByType(JacocoTaskExtension::class.java)?.destinationFile?.delete()
+
+        val classNames = shardFile.get().asFile.readLines().filter { it.isNotBlank() }
+        if (classNames.isEmpty()) throw StopExecutionException()
+
+        val filter = test.filter
+        classNames.forEach { filter.includeTestsMatching(it) }
+        filter.isFailOnNoMatchingTests = false
+    }
+}
+
+/**
+ * Registers [numShards] test tasks, each running one of the shards written to [shardDir]
+ * by [writeShards], and each set up just like the project's own test task. Returns them,
+ * in order.
+ */
+internal fun Project.registerTestShards(
+    numShards: Int,
+    shardDir: Provider<Directory>,
+    writeShards: TaskProvider<*>
+): List<TaskProvider<Test>> {
+    val test = tasks.named("test", Test::class.java)
+
+    val shards = (1..numShards).map { shard ->
+        tasks.register("testShard$shard", Test::class.java) { task ->
+            task.group = "verification"
+            task.description = "Runs shard $shard of $numShards of the graded tests."
+            task.dependsOn(writeShards)
+
+            val original = test.get()
+            task.testClassesDirs = original.testClassesDirs
+            task.classpath = original.classpath
+            task.useJUnitPlatform()
+            task.minHeapSize = original.minHeapSize
+            task.maxHeapSize = original.maxHeapSize
+            task.jvmArgs = original.jvmArgs
+            task.systemProperties(original.systemProperties)
+            task.ignoreFailures = original.ignoreFailures
+
+            val shardFile = shardDir.map { it.file("shard-$shard.txt") }
+            task.inputs.file(shardFile).withPropertyName("testShard")
+            task.doFirst(ApplyTestShard(shardFile))
+        }
+    }
+
+    test.configure { task ->
+        task.dependsOn(shards)
+        task.onlyIf { false }
+    }
+
+    // The test task doesn't run, but its execution data from before we were sharding might
+    // still be there, so the JaCoCo tasks look at the shards' execution data and nothing else.
+    plugins.withId("jacoco") {
+        tasks.withType(JacocoReportBase::class.java)
+            .matching { it.name in JACOCO_TEST_TASKS }
+            .configureEach { task ->
+                task.executionData.setFrom()
+                shards.forEach { task.executionData(it.get()) }
+            }
+    }
+
+    return shards
+}
@@ -0,0 +1,157 @@
+/*
+ * RiceChecks
+ * Copyright (c) 2019, Dan S. Wallach, Rice University
+ * Available subject to the Apache 2.0 License
+ */
+
+package edu.rice.autograder.gradle
+
+import java.io.File
+import org.gradle.testkit.runner.GradleRunner
+import org.gradle.testkit.runner.TaskOutcome
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+
+/**
+ * The autograder the fixture grades with: either the jar named by the `autograderJar`
+ * property of our build, or the newest fat jar in the directory it names.
+ */
+private val autograderJar: File by lazy {
+    val path = File(System.getProperty("ricechecks.autograderJar"))
+    val jar =
+        if (path.isDirectory) {
+            path.listFiles { file -> file.name.endsWith("-fatjar.jar") }
+                ?.maxBy { it.lastModified() }
+        } else {
+            path
+        }
+
+    requireNotNull(jar?.takeIf { it.isFile }) {
+        "No autograder jar in $path; run ./gradlew :autograder:fatJar first"
+    }
+}
+
+/**
+ * Runs the plugin, from this build's classes, against a fixture project with one class, no
+ * tests, and a one-test policy, so there's always something to report.
+ */
+class RiceChecksPluginTest {
+    @TempDir
+    lateinit var projectDir: File
+
+    @BeforeEach
+    fun writeFixture() {
+        projectDir.resolve("settings.gradle").writeText("rootProject.name = 'fixture'\n")
+        projectDir.resolve("build.gradle").writeText(
+            """
+            plugins {
+                id 'edu.rice.ricechecks'
+            }
+
+            dependencies {
+                ricechecks files('${autograderJar.invariantSeparatorsPath}')
+            }
+
+            ricechecks {
+                gradeProject = "Fixture"
+                gradePackage = "edu.rice.fixture"
+                ignoreFailures = true
+            }
+            """.trimIndent()
+        )
+
+        val sourceDir = projectDir.resolve("src/main/java/edu/rice/fixture")
+        sourceDir.mkdirs()
+        sourceDir.resolve("Fixture.java").writeText(
+            """
+            package edu.rice.fixture;
+
+            public class Fixture {
+              public static int answer() {
+                return 42;
+              }
+            }
+            """.trimIndent()
+        )
+
+        val configDir = projectDir.resolve("config")
+        configDir.mkdirs()
+        configDir.resolve("grade.yml").writeText(
+            """
+            name: "Fixture"
+            description: "The plugin's functional test fixture"
+            maxPoints: 1.0
+            warningPoints: 0.0
+            useCheckStyle: false
+            useGoogleJavaFormat: false
+            useJavacWarnings: false
+            coveragePoints: 0.0
+            coverageStyle: "LINES"
+            coveragePercentage: 0.0
+            coverageAnnotations: []
+            topics:
+            - name: "Answers"
+              maxPoints: 1.0
+              tests:
+              - points: 1.0
+                maxPoints: 0.0
+                className: "edu.rice.fixture.FixtureTest"
+                methodName: "answer"
+            """.trimIndent()
+        )
+    }
+
+    private fun gradle(vararg args: String) =
+        GradleRunner.create()
+            .withProjectDir(projectDir)
+            .withPluginClasspath()
+            .withArguments(*args, "--stacktrace")
+            .build()
+
+    @Test
+    fun autograderPrintsTheReport() {
+        val result = gradle("autograder")
+
+        assertEquals(TaskOutcome.SUCCESS, result.task(":autograderGrade")?.outcome)
+        assertEquals(TaskOutcome.SUCCESS, result.task(":autograder")?.outcome)
+        assertTrue(result.output.contains("Autograder for Fixture"))
+        assertTrue(result.output.contains("No unit tests found"))
+        assertTrue(projectDir.resolve("build/autograder/report.json").isFile)
+    }
+
+    @Test
+    fun gradingIsSkippedWhenNothingChanged() {
+        gradle("autograder")
+        val result = gradle("autograder")
+
+        assertEquals(TaskOutcome.UP_TO_DATE, result.task(":autograderGrade")?.outcome)
+
+        // The report is still printed, even though grading was skipped.
+        assertEquals(TaskOutcome.SUCCESS, result.task(":autograder")?.outcome)
+        assertTrue(result.output.contains("Autograder for Fixture"))
+    }
+
+    @Test
+    fun reportsComeFromTheBuildCache() {
+        gradle("autograder", "--build-cache")
+        projectDir.resolve("build/autograder").deleteRecursively()
+        val result = gradle("autograder", "--build-cache")
+
+        assertEquals(TaskOutcome.FROM_CACHE, result.task(":autograderGrade")?.outcome)
+        assertTrue(result.output.contains("Autograder for Fixture"))
+    }
+
+    @Test
+    fun changingThePolicyGradesAgain() {
+        gradle("autograder")
+        val policy = projectDir.resolve("config/grade.yml")
+        policy.writeText(policy.readText().replace("The plugin's", "Our"))
+        val result = gradle("autograder")
+
+        assertEquals(TaskOutcome.SUCCESS, result.task(":autograderGrade")?.outcome)
+        assertTrue(result.output.contains("Our functional test fixture"))
+    }
+}
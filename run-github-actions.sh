@@ -1,8 +1,11 @@
 # this script avoids a weird problem where Gradle is printing the autograder output at the wrong time
 
 export RICECHECKS_QUIET=true
-./gradlew --console=plain :autograder:check autograder
+./gradlew --console=plain :autograder:check :autograder:fatJar autograder
 retVal=$?
+
+# the Gradle plugin is its own build; its functional tests grade with the fat jar built above
+./gradlew --console=plain -p gradlePlugin test || retVal=1
 echo
 echo ============= exampleRegex/
 echo